@@ -1,9 +1,12 @@
 package com.hmdp.controller;
 
 
-import org.springframework.web.bind.annotation.RequestMapping;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.service.IBlogCommentsService;
+import org.springframework.web.bind.annotation.*;
 
-import org.springframework.web.bind.annotation.RestController;
+import javax.annotation.Resource;
 
 /**
  * <p>
@@ -17,4 +20,40 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/blog-comments")
 public class BlogCommentsController {
 
+    @Resource
+    private IBlogCommentsService blogCommentsService;
+
+    /**
+     * 发表评论
+     * @param comment 博文id、内容，回复评论时带上answerId
+     * @return 评论id
+     */
+    @PostMapping
+    public Result saveComment(@RequestBody BlogComments comment) {
+        return blogCommentsService.saveComment(comment);
+    }
+
+    /**
+     * 游标分页查询博文的一级评论，每条带上最早的几条回复
+     * @param id 博文id
+     * @param cursor 游标，第一页传空字符串
+     */
+    @GetMapping("/of/blog/{id}")
+    public Result queryCommentsOfBlog(
+            @PathVariable("id") Long id,
+            @RequestParam(value = "cursor", defaultValue = "") String cursor) {
+        return blogCommentsService.queryCommentsOfBlog(id, cursor);
+    }
+
+    /**
+     * 游标分页查询一级评论下的回复
+     * @param id 一级评论id
+     * @param cursor 游标，第一页传空字符串
+     */
+    @GetMapping("/replies/{id}")
+    public Result queryReplies(
+            @PathVariable("id") Long id,
+            @RequestParam(value = "cursor", defaultValue = "") String cursor) {
+        return blogCommentsService.queryReplies(id, cursor);
+    }
 }
@@ -1,19 +1,16 @@
 package com.hmdp.controller;
 
 
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.Result;
-import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
-import com.hmdp.service.IUserService;
-import com.hmdp.utils.SystemConstants;
-import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UvCounter;
+import com.hmdp.utils.UvTarget;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * <p>
@@ -29,55 +26,83 @@ public class BlogController {
 
     @Resource
     private IBlogService blogService;
+
     @Resource
-    private IUserService userService;
+    private UvCounter uvCounter;
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
-        // 获取登录用户
-        UserDTO user = UserHolder.getUser();
-        blog.setUserId(user.getId());
-        // 保存探店博文
-        blogService.save(blog);
-        // 返回id
-        return Result.ok(blog.getId());
+        return blogService.saveBlog(blog);
+    }
+
+    /**
+     * 滚动分页查询关注的人发布的博文
+     * @param max 上一页的minTime，第一页传当前时间戳
+     * @param offset 上一页的offset，第一页传0
+     * @return ScrollResult
+     */
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(
+            @RequestParam("lastId") Long max,
+            @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryBlogOfFollow(max, offset);
     }
 
+    /**
+     * 查询博文详情，同时记录独立访客
+     * @param id 博文id
+     */
+    @GetMapping("/{id}")
+    public Result queryBlogById(@PathVariable("id") Long id, HttpServletRequest request) {
+        Result result = blogService.queryBlogById(id);
+        if (BooleanUtil.isTrue(result.getSuccess())) {
+            uvCounter.record(UvTarget.BLOG, id, uvCounter.visitorOf(request));
+        }
+        return result;
+    }
+
+    /**
+     * 点赞或取消点赞
+     * @param id 博文id
+     */
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
-        // 修改点赞数量
-        blogService.update()
-                .setSql("liked = liked + 1").eq("id", id).update();
-        return Result.ok();
+        return blogService.likeBlog(id);
+    }
+
+    /**
+     * 查询最早点赞的用户
+     * @param id 博文id
+     * @param limit 数量，最多10个
+     */
+    @GetMapping("/likes/{id}")
+    public Result queryBlogLikes(
+            @PathVariable("id") Long id,
+            @RequestParam(value = "limit", defaultValue = "5") Integer limit) {
+        return blogService.queryBlogLikes(id, limit);
     }
 
+    /**
+     * 分页查询当前用户的博文
+     * @param current 页码
+     * @param cursor 游标，传入时使用游标分页(第一页传空字符串)，返回CursorResult
+     */
     @GetMapping("/of/me")
-    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        // 获取登录用户
-        UserDTO user = UserHolder.getUser();
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .eq("user_id", user.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        return Result.ok(records);
+    public Result queryMyBlog(
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        return blogService.queryMyBlog(current, cursor);
     }
 
+    /**
+     * 分页查询热门博文，按时间衰减的热度排序
+     * @param current 页码
+     * @param cursor 游标，传入时使用游标分页(第一页传空字符串)，返回CursorResult
+     */
     @GetMapping("/hot")
-    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
-        });
-        return Result.ok(records);
+    public Result queryHotBlog(
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor) {
+        return blogService.queryHotBlog(current, cursor);
     }
 }
@@ -1,15 +1,16 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UvCounter;
+import com.hmdp.utils.UvTarget;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 
 /**
  * <p>
@@ -26,14 +27,31 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private UvCounter uvCounter;
+
     /**
-     * 根据id查询商铺信息
+     * 根据id查询商铺信息，同时记录独立访客
      * @param id 商铺id
      * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public Result queryShopById(@PathVariable("id") Long id, HttpServletRequest request) {
+        Result result = shopService.queryById(id);
+        if (BooleanUtil.isTrue(result.getSuccess())) {
+            uvCounter.record(UvTarget.SHOP, id, uvCounter.visitorOf(request));
+        }
+        return result;
+    }
+
+    /**
+     * 查询店铺详情页，一次返回店铺、优惠券和点赞最多的探店笔记
+     * @param id 商铺id
+     * @return ShopDetailDTO，degraded中列出超时或失败而返回空的部分
+     */
+    @GetMapping("/{id}/detail")
+    public Result queryShopDetail(@PathVariable("id") Long id) {
+        return shopService.queryShopDetail(id);
     }
 
     /**
@@ -44,9 +62,7 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -63,37 +79,72 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param cursor 游标，传入时使用游标分页(第一页传空字符串)，返回CursorResult，此时忽略坐标
+     * @param x 经度，与y同时传入时查询附近商铺，按距离排序
+     * @param y 纬度
+     * @param openNow 查询附近商铺时只返回正在营业的
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "openNow", defaultValue = "false") Boolean openNow
     ) {
         // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByType(typeId, current, cursor, x, y, openNow);
     }
 
     /**
      * 根据商铺名称关键字分页查询商铺信息
      * @param name 商铺名称关键字
+     * @param area 商圈，不传时查询所有商圈
      * @param current 页码
+     * @param cursor 游标，传入时使用游标分页(第一页传空字符串)，返回CursorResult
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
+            @RequestParam(value = "area", required = false) String area,
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
+    ) {
+        return shopService.queryShopByName(name, area, current, cursor);
+    }
+
+    /**
+     * 按评分、销量或评论数分页查询某个类型的商铺排行
+     * @param typeId 商铺类型
+     * @param area 商圈，不传时为全部商圈的排行
+     * @param sortBy 排序字段：score、sold或comments
+     * @param current 页码
+     * @return 商铺列表
+     */
+    @GetMapping("/of/rank")
+    public Result queryShopRank(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam(value = "area", required = false) String area,
+            @RequestParam(value = "sortBy", defaultValue = "score") String sortBy,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopRank(typeId, area, sortBy, current);
+    }
+
+    /**
+     * 根据名称前缀补全商铺名称
+     * @param prefix 名称前缀
+     * @param limit 返回的数量，最多10个
+     * @return 商铺id和名称
+     */
+    @GetMapping("/suggest")
+    public Result suggestShops(
+            @RequestParam("prefix") String prefix,
+            @RequestParam(value = "limit", defaultValue = "10") Integer limit
+    ) {
+        return shopService.suggestShops(prefix, limit);
     }
 }
@@ -7,12 +7,16 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CounterField;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.WriteBehindCounter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * <p>
@@ -33,6 +37,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
     /**
      * 发送手机验证码
      */
@@ -80,6 +87,11 @@ public class UserController {
         }
         info.setCreateTime(null);
         info.setUpdateTime(null);
+        // 加上尚未写回数据库的粉丝数和关注数
+        Map<CounterField, Map<Long, Long>> deltas = writeBehindCounter.deltas(
+                Collections.singletonList(userId), CounterField.USER_FANS, CounterField.USER_FOLLOWEE);
+        info.setFans(WriteBehindCounter.apply(info.getFans(), deltas.get(CounterField.USER_FANS).get(userId)));
+        info.setFollowee(WriteBehindCounter.apply(info.getFollowee(), deltas.get(CounterField.USER_FOLLOWEE).get(userId)));
         // 返回
         return Result.ok(info);
     }
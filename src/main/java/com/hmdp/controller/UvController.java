@@ -0,0 +1,66 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import com.hmdp.utils.UvCounter;
+import com.hmdp.utils.UvTarget;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * <p>
+ * 独立访客统计
+ * </p>
+ */
+@RestController
+@RequestMapping("/uv")
+public class UvController {
+
+    @Resource
+    private UvCounter uvCounter;
+
+    // 按日期范围查询时最多跨越的天数
+    @Value("${hmdp.uv.max-range-days:366}")
+    private int maxRangeDays;
+
+    /**
+     * 查询日期范围内的独立访客数
+     * @param type 类型，shop或blog
+     * @param id 店铺或博文id
+     * @param begin 开始日期，例如2026-10-01，包含
+     * @param end 结束日期，包含，默认今天
+     * @return 独立访客数，误差约0.81%
+     */
+    @GetMapping("/{type}/{id}")
+    public Result queryUv(
+            @PathVariable("type") String type,
+            @PathVariable("id") Long id,
+            @RequestParam("begin") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate begin,
+            @RequestParam(value = "end", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate end) {
+        UvTarget target = UvTarget.of(type);
+        if (target == null) {
+            return Result.fail("不支持的统计类型！");
+        }
+        LocalDate today = LocalDate.now();
+        if (end == null || end.isAfter(today)) {
+            end = today;
+        }
+        if (begin.isAfter(end)) {
+            return Result.fail("开始日期不能晚于结束日期！");
+        }
+        if (ChronoUnit.DAYS.between(begin, end) >= maxRangeDays) {
+            return Result.fail("日期范围不能超过" + maxRangeDays + "天！");
+        }
+        try {
+            return Result.ok(uvCounter.count(target, id, begin, end));
+        } catch (RedisUnavailableException e) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+    }
+}
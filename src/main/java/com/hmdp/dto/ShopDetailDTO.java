@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ShopDetailDTO {
+    private Shop shop;
+    private List<Voucher> vouchers;
+    private List<Blog> blogs;
+    // 超时或失败而返回空的部分(vouchers、blogs)，前端可以单独重新请求
+    private List<String> degraded;
+}
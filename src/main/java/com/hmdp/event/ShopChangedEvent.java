@@ -0,0 +1,21 @@
+package com.hmdp.event;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 店铺新增或修改事件，事务提交后由各个店铺索引增量更新
+ */
+@Data
+@AllArgsConstructor
+public class ShopChangedEvent {
+    /**
+     * 修改前的店铺，新增时为null
+     */
+    private Shop old;
+    /**
+     * 新增或修改后的完整店铺数据
+     */
+    private Shop current;
+}
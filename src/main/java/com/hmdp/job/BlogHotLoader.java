@@ -0,0 +1,141 @@
+package com.hmdp.job;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.BlogHotRanker;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 博文热度排行榜重建
+ * 按id做keyset分页扫描最近发布的博文，点赞和评论都按发布时间计算热度，写入影子key后RENAME覆盖正式key；
+ * 之后的热度变化由BlogHotRanker增量维护
+ */
+@Slf4j
+@Component
+public class BlogHotLoader {
+    private static final int LOAD_BATCH = 1000;
+    // 只加载最近若干个半衰期内发布的博文，更早的热度已经可以忽略
+    private static final int LOAD_HALF_LIVES = 20;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IBlogService blogService;
+    @Resource
+    private BlogHotRanker blogHotRanker;
+
+    /**
+     * 排行榜尚未建立时在后台线程建立
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_EPOCH_KEY))) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (Exception e) {
+                log.error("博文热度排行榜加载失败", e);
+            }
+        }, "blog-hot-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 全量重建排行榜，同一时间只允许一个实例重建
+     * @return 加载的博文数量，其他实例正在重建时返回-1
+     */
+    public long rebuild() {
+        Boolean isLock = stringRedisTemplate.opsForValue()
+                .setIfAbsent(LOCK_BLOG_HOT_REBUILD_KEY, "1", LOCK_BLOG_HOT_REBUILD_TTL, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            return -1;
+        }
+        try {
+            return load();
+        } finally {
+            stringRedisTemplate.delete(LOCK_BLOG_HOT_REBUILD_KEY);
+        }
+    }
+
+    private long load() {
+        long begin = System.currentTimeMillis();
+        long epoch = begin;
+        long halfLife = blogHotRanker.getHalfLifeMillis();
+        LocalDateTime since = LocalDateTime.now().minusNanos(TimeUnit.MILLISECONDS.toNanos(halfLife * LOAD_HALF_LIVES));
+        stringRedisTemplate.delete(BLOG_HOT_SHADOW_KEY);
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            // 1. keyset分页，只查询计算热度需要的字段
+            List<Blog> blogs = blogService.query()
+                    .select("id", "liked", "comments", "create_time")
+                    .gt("id", lastId)
+                    .ge("create_time", since)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH)
+                    .list();
+            if (blogs.isEmpty()) {
+                break;
+            }
+            // 2. 一次pipeline写入整页
+            byte[] shadowKey = bytes(BLOG_HOT_SHADOW_KEY);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Blog blog : blogs) {
+                    connection.zAdd(shadowKey, score(blog, epoch, halfLife), bytes(blog.getId().toString()));
+                }
+                return null;
+            });
+            total += blogs.size();
+            lastId = blogs.get(blogs.size() - 1).getId();
+        }
+
+        // 3. 只保留热度最高的部分，替换正式key并设置基准时间，没有博文时排行榜为空
+        boolean empty = total == 0;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            if (empty) {
+                connection.del(bytes(BLOG_HOT_KEY));
+            } else {
+                connection.zRemRange(bytes(BLOG_HOT_SHADOW_KEY), 0, -(SystemConstants.BLOG_HOT_SIZE + 1));
+                connection.rename(bytes(BLOG_HOT_SHADOW_KEY), bytes(BLOG_HOT_KEY));
+            }
+            connection.set(bytes(BLOG_HOT_EPOCH_KEY), bytes(String.valueOf(epoch)));
+            return null;
+        });
+        log.info("博文热度排行榜加载完成，博文数：{}，耗时：{}ms", total, System.currentTimeMillis() - begin);
+        return total;
+    }
+
+    private static double score(Blog blog, long epoch, long halfLife) {
+        int liked = blog.getLiked() == null ? 0 : blog.getLiked();
+        int comments = blog.getComments() == null ? 0 : blog.getComments();
+        double weight = BlogHotRanker.CREATE_WEIGHT + liked * BlogHotRanker.LIKE_WEIGHT + comments * BlogHotRanker.COMMENT_WEIGHT;
+        if (blog.getCreateTime() == null) {
+            return 0;
+        }
+        long created = blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return weight * Math.pow(2, (double) (created - epoch) / halfLife);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
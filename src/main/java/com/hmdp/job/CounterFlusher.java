@@ -0,0 +1,143 @@
+package com.hmdp.job;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.mapper.CounterMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CounterField;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.ShopRankField;
+import com.hmdp.utils.SimpleRedisLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 计数回写
+ * 点赞、评论、销量、关注只在redis中累加增量，由这里定时把每个计数器的增量分批合并成UPDATE写回数据库，
+ * 热点行不再每次计数都争抢行锁。
+ * 每次写回的增量带一个批次号，批次号和增量在同一个事务中写入tb_counter_flush，
+ * 写库成功后、删除redis中的增量之前崩溃，重试时发现批次号已写入就不会重复累加。
+ * 店铺的销量和评论数写回后删除店铺缓存，读取时缓存中的值加上尚未写回的增量；排行榜按数据库中的新值更新
+ */
+@Slf4j
+@Component
+public class CounterFlusher {
+    private static final int FLUSH_BATCH = 500;
+    // 正在写回的hash中记录批次号的字段
+    private static final String BATCH_FIELD = "#batch";
+
+    private static final DefaultRedisScript<String> ROTATE_SCRIPT;
+    private static final DefaultRedisScript<Long> FLUSHED_SCRIPT;
+    static {
+        ROTATE_SCRIPT = new DefaultRedisScript<>();
+        ROTATE_SCRIPT.setLocation(new ClassPathResource("counter_rotate.lua"));
+        ROTATE_SCRIPT.setResultType(String.class);
+        FLUSHED_SCRIPT = new DefaultRedisScript<>();
+        FLUSHED_SCRIPT.setLocation(new ClassPathResource("counter_flushed.lua"));
+        FLUSHED_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CounterMapper counterMapper;
+    @Resource
+    private TransactionTemplate transactionTemplate;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private ShopRankLoader shopRankLoader;
+
+    /**
+     * 同一时间只允许一个实例刷新
+     */
+    @Scheduled(fixedDelayString = "${hmdp.counter.flush-millis:5000}")
+    public void flush() {
+        // 只释放自己持有的锁，刷新超过锁的有效期时不会删除其他实例的锁
+        ILock lock = new SimpleRedisLock(LOCK_COUNTER_FLUSH_NAME, stringRedisTemplate);
+        if (!lock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_COUNTER_FLUSH_TTL))) {
+            return;
+        }
+        try {
+            for (CounterField field : CounterField.values()) {
+                try {
+                    flushDeltas(field);
+                } catch (Exception e) {
+                    // 增量留在redis中，下次继续刷新
+                    log.warn("计数回写失败，计数器：{}", field, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushDeltas(CounterField field) {
+        // 1. 上次中断残留的增量沿用原批次号；否则把当前增量整体改名并分配新的批次号，之后的增量写入新的hash
+        String batchId = stringRedisTemplate.execute(ROTATE_SCRIPT,
+                Arrays.asList(field.getDeltaKey(), field.getFlushingKey()), UUID.randomUUID().toString(true));
+        if (batchId == null) {
+            return;
+        }
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(field.getFlushingKey());
+
+        // 2. 同一个事务中分批写入增量和批次号，批次号已经写入过说明上次已写库成功，只是没来得及删除
+        Integer rows = transactionTemplate.execute(status -> {
+            if (batchId.equals(counterMapper.selectBatchId(field.name()))) {
+                return 0;
+            }
+            int updated = 0;
+            Map<Long, Long> batch = new HashMap<>(FLUSH_BATCH * 4 / 3 + 1);
+            for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+                long delta = BATCH_FIELD.equals(entry.getKey()) ? 0 : Long.parseLong(entry.getValue().toString());
+                // 相互抵消的增量为0，跳过
+                if (delta == 0) {
+                    continue;
+                }
+                batch.put(Long.valueOf(entry.getKey().toString()), delta);
+                if (batch.size() >= FLUSH_BATCH) {
+                    updated += flushBatch(field, batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                updated += flushBatch(field, batch);
+            }
+            counterMapper.saveBatchId(field.name(), batchId);
+            return updated;
+        });
+
+        // 3. 写库成功后删除，只删除本批次的增量
+        stringRedisTemplate.execute(FLUSHED_SCRIPT, Collections.singletonList(field.getFlushingKey()), batchId);
+        // 4. 店铺缓存和排行榜中还是写回之前的值，删除缓存后从数据库重新加载，排行榜写入数据库中的新值
+        if (field == CounterField.SHOP_SOLD || field == CounterField.SHOP_COMMENTS) {
+            List<Long> ids = entries.keySet().stream()
+                    .filter(key -> !BATCH_FIELD.equals(key))
+                    .map(key -> Long.valueOf(key.toString()))
+                    .collect(Collectors.toList());
+            cacheClient.evict(CACHE_SHOP_KEY, CACHE_SHOP_BUCKET_KEY, ids);
+            shopRankLoader.refresh(ids, field == CounterField.SHOP_SOLD ? ShopRankField.SOLD : ShopRankField.COMMENTS);
+        }
+        log.debug("计数回写完成，计数器：{}，批次：{}，更新行数：{}", field, batchId, rows);
+    }
+
+    private int flushBatch(CounterField field, Map<Long, Long> batch) {
+        int updated = field.isUpsert() ? counterMapper.upsert(field, batch) : counterMapper.increment(field, batch);
+        batch.clear();
+        return updated;
+    }
+}
@@ -0,0 +1,341 @@
+package com.hmdp.job;
+
+import com.hmdp.entity.Follow;
+import com.hmdp.entity.UserInfo;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.IUserInfoService;
+import com.hmdp.utils.CounterField;
+import com.hmdp.utils.WriteBehindCounter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 关注流的后台推送
+ * 发布博文只把推送任务写入stream，这里按粉丝id做keyset分页扫描tb_follow，每页用一次pipeline写入粉丝的收件箱并裁剪长度；
+ * 每页写完后记录已推送到的粉丝id，重启后从stream中未确认的任务和记录的位置继续；
+ * 其他消费者空闲太久的未确认任务(例如主机名变化后旧的消费者不再存在)定期转给自己处理；
+ * 投递次数超过上限的任务移入死信stream，不会一直重试而阻塞后面的任务
+ */
+@Slf4j
+@Component
+public class FeedFanoutWorker {
+    private static final String GROUP = "fanout";
+    // 检查其他消费者未确认任务的间隔，以及每次检查的数量
+    private static final long CLAIM_INTERVAL_MILLIS = 30000;
+    private static final int CLAIM_BATCH = 100;
+    private static final DefaultRedisScript<Long> GROUP_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        GROUP_SCRIPT = new DefaultRedisScript<>();
+        GROUP_SCRIPT.setLocation(new ClassPathResource("stream_group.lua"));
+        GROUP_SCRIPT.setResultType(Long.class);
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("stream_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private static final ExecutorService FANOUT_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "feed-fanout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IFollowService followService;
+    @Resource
+    private IUserInfoService userInfoService;
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
+    // 粉丝数超过该值的作者只写发件箱
+    @Value("${hmdp.feed.push-threshold:10000}")
+    private int pushThreshold;
+
+    // 每页查询的粉丝数，也是每次pipeline写入的收件箱数
+    @Value("${hmdp.feed.fanout.batch-size:1000}")
+    private int batchSize;
+
+    // 消费者名称，重启后用同一个名称才能继续处理未确认的任务
+    @Value("${hmdp.feed.fanout.consumer:${HOSTNAME:fanout-1}}")
+    private String consumerName;
+
+    // 其他消费者的任务空闲超过该时间后转给自己，应大于推送一篇博文的最长耗时
+    @Value("${hmdp.feed.fanout.claim-idle-millis:300000}")
+    private long claimIdleMillis;
+
+    // 推送任务的最多投递次数，超过后移入死信stream
+    @Value("${hmdp.feed.fanout.max-deliveries:5}")
+    private long maxDeliveries;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong pushedPosts = new AtomicLong();
+    private final AtomicLong outboxOnlyPosts = new AtomicLong();
+    private final AtomicLong inboxWrites = new AtomicLong();
+    private final AtomicLong totalPushMillis = new AtomicLong();
+    private final AtomicLong maxPushMillis = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        FANOUT_EXECUTOR.submit(this::run);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        FANOUT_EXECUTOR.shutdownNow();
+    }
+
+    private void run() {
+        Consumer consumer = Consumer.from(GROUP, consumerName);
+        // 先处理上次未确认的任务，处理完后再读取新任务
+        boolean pending = true;
+        boolean groupCreated = false;
+        long lastClaim = 0;
+        while (running) {
+            try {
+                if (!groupCreated) {
+                    stringRedisTemplate.execute(GROUP_SCRIPT, Collections.singletonList(FEED_FANOUT_STREAM_KEY), GROUP);
+                    groupCreated = true;
+                }
+                // 接管其他消费者空闲太久的任务，接管后和自己未确认的任务一起处理
+                if (System.currentTimeMillis() - lastClaim >= CLAIM_INTERVAL_MILLIS) {
+                    lastClaim = System.currentTimeMillis();
+                    long claimed = claim();
+                    if (claimed > 0) {
+                        log.info("接管其他消费者的推送任务：{}", claimed);
+                        pending = true;
+                    }
+                }
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                        StreamOffset.create(FEED_FANOUT_STREAM_KEY, pending ? ReadOffset.from("0") : ReadOffset.lastConsumed()));
+                if (records == null || records.isEmpty()) {
+                    pending = false;
+                    continue;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    try {
+                        fanout(record);
+                    } catch (Exception e) {
+                        deadLetterIfExhausted(record);
+                        throw e;
+                    }
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.warn("关注流推送失败，稍后重试", e);
+                // 失败的任务仍未确认，先重新处理未确认的任务；redis可能被清空，重新创建消费者组
+                pending = true;
+                groupCreated = false;
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 推送一篇博文，完成后确认并删除任务
+     */
+    private void fanout(MapRecord<String, Object, Object> record) {
+        String recordId = record.getId().getValue();
+        Map<Object, Object> task = record.getValue();
+        Long authorId = Long.valueOf(task.get("authorId").toString());
+        String blogId = task.get("blogId").toString();
+        long time = Long.parseLong(task.get("time").toString());
+        long begin = System.currentTimeMillis();
+
+        // 1. 粉丝太多时只记为大V，由粉丝读取时拉取
+        if (followerCount(authorId) > pushThreshold) {
+            stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHORS_KEY, authorId.toString());
+            outboxOnlyPosts.incrementAndGet();
+        } else {
+            stringRedisTemplate.opsForSet().remove(FEED_BIG_AUTHORS_KEY, authorId.toString());
+            // 2. 从上次记录的位置继续推送
+            Object checkpoint = stringRedisTemplate.opsForHash().get(FEED_FANOUT_CHECKPOINT_KEY, recordId);
+            long lastId = checkpoint == null ? 0 : Long.parseLong(checkpoint.toString());
+            long written = 0;
+            while (running) {
+                List<Follow> followers = followService.query()
+                        .select("user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("user_id", lastId)
+                        .orderByAsc("user_id")
+                        .last("limit " + batchSize)
+                        .list();
+                if (followers.isEmpty()) {
+                    break;
+                }
+                lastId = followers.get(followers.size() - 1).getUserId();
+                writeInboxes(followers, blogId, time, recordId, lastId);
+                written += followers.size();
+            }
+            if (!running) {
+                return;
+            }
+            pushedPosts.incrementAndGet();
+            inboxWrites.addAndGet(written);
+            long cost = System.currentTimeMillis() - begin;
+            totalPushMillis.addAndGet(cost);
+            maxPushMillis.accumulateAndGet(cost, Math::max);
+            log.debug("博文推送完成，blogId：{}，收件箱数：{}，耗时：{}ms", blogId, written, cost);
+        }
+
+        // 3. 确认并删除任务和位置记录
+        stringRedisTemplate.opsForStream().acknowledge(FEED_FANOUT_STREAM_KEY, GROUP, record.getId());
+        stringRedisTemplate.opsForStream().delete(FEED_FANOUT_STREAM_KEY, record.getId());
+        stringRedisTemplate.opsForHash().delete(FEED_FANOUT_CHECKPOINT_KEY, recordId);
+    }
+
+    /**
+     * 分批检查所有未确认的任务，接管其他消费者空闲太久的
+     * @return 接管的数量
+     */
+    @SuppressWarnings("unchecked")
+    private long claim() {
+        long claimed = 0;
+        String start = "-";
+        while (!start.isEmpty()) {
+            List<Object> result = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.singletonList(FEED_FANOUT_STREAM_KEY),
+                    GROUP, consumerName, String.valueOf(claimIdleMillis), String.valueOf(CLAIM_BATCH), start);
+            if (result == null || result.size() < 2) {
+                break;
+            }
+            claimed += ((Number) result.get(0)).longValue();
+            start = String.valueOf(result.get(1));
+        }
+        return claimed;
+    }
+
+    /**
+     * 推送失败后检查任务的投递次数，超过上限时移入死信stream，确认并删除任务
+     * 检查本身失败时不处理，任务仍未确认，下次再试
+     */
+    private void deadLetterIfExhausted(MapRecord<String, Object, Object> record) {
+        String recordId = record.getId().getValue();
+        try {
+            PendingMessages messages = stringRedisTemplate.opsForStream()
+                    .pending(FEED_FANOUT_STREAM_KEY, GROUP, Range.closed(recordId, recordId), 1L);
+            if (messages.isEmpty() || messages.get(0).getTotalDeliveryCount() < maxDeliveries) {
+                return;
+            }
+            Map<String, String> task = new HashMap<>(4);
+            record.getValue().forEach((k, v) -> task.put(k.toString(), v.toString()));
+            task.put("recordId", recordId);
+            stringRedisTemplate.opsForStream().add(FEED_FANOUT_DEAD_KEY, task);
+            stringRedisTemplate.opsForStream().acknowledge(FEED_FANOUT_STREAM_KEY, GROUP, record.getId());
+            stringRedisTemplate.opsForStream().delete(FEED_FANOUT_STREAM_KEY, record.getId());
+            stringRedisTemplate.opsForHash().delete(FEED_FANOUT_CHECKPOINT_KEY, recordId);
+            log.error("推送任务超过最多投递次数，已移入死信stream，任务：{}", task);
+        } catch (Exception e) {
+            log.warn("推送任务的投递次数检查失败，recordId：{}", recordId, e);
+        }
+    }
+
+    /**
+     * 作者的粉丝数，只用于判断是否为大V，不需要精确
+     * 优先使用tb_user_info中由计数器维护的粉丝数加上未写回的增量；没有记录的作者count一次，在redis中缓存一段时间
+     */
+    private long followerCount(Long authorId) {
+        UserInfo info = userInfoService.getById(authorId);
+        if (info != null && info.getFans() != null) {
+            Long delta = writeBehindCounter.deltas(Collections.singletonList(authorId), CounterField.USER_FANS)
+                    .get(CounterField.USER_FANS).get(authorId);
+            return WriteBehindCounter.apply(info.getFans(), delta);
+        }
+        String key = FEED_FANS_COUNT_KEY + authorId;
+        String cached = stringRedisTemplate.opsForValue().get(key);
+        if (cached != null) {
+            return Long.parseLong(cached);
+        }
+        int count = followService.query().eq("follow_user_id", authorId).count();
+        stringRedisTemplate.opsForValue().set(key, String.valueOf(count), FEED_FANS_COUNT_TTL, TimeUnit.MINUTES);
+        return count;
+    }
+
+    /**
+     * 一次pipeline写入一页粉丝的收件箱，每个收件箱只保留最新的FEED_MAX_SIZE篇，最后记录推送到的位置
+     * 中途失败时整页重做，ZADD是幂等的
+     */
+    private void writeInboxes(List<Follow> followers, String blogId, long time, String recordId, long lastId) {
+        byte[] member = bytes(blogId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Follow follower : followers) {
+                byte[] inbox = bytes(FEED_KEY + follower.getUserId());
+                connection.zAdd(inbox, time, member);
+                connection.zRemRange(inbox, 0, -(FEED_MAX_SIZE + 1));
+            }
+            connection.hSet(bytes(FEED_FANOUT_CHECKPOINT_KEY), bytes(recordId), bytes(String.valueOf(lastId)));
+            return null;
+        });
+    }
+
+    /**
+     * 推送的开销和吞吐
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long pushed = pushedPosts.get();
+        long millis = totalPushMillis.get();
+        metrics.put("pushedPosts", pushed);
+        metrics.put("outboxOnlyPosts", outboxOnlyPosts.get());
+        metrics.put("inboxWrites", inboxWrites.get());
+        metrics.put("avgInboxWritesPerPost", pushed == 0 ? 0 : inboxWrites.get() / pushed);
+        metrics.put("avgPushMillis", pushed == 0 ? 0 : millis / pushed);
+        metrics.put("maxPushMillis", maxPushMillis.get());
+        metrics.put("inboxWritesPerSecond", millis == 0 ? 0 : inboxWrites.get() * 1000 / millis);
+        metrics.put("backlog", stringRedisTemplate.opsForStream().size(FEED_FANOUT_STREAM_KEY));
+        return metrics;
+    }
+
+    @Scheduled(fixedDelay = 5 * 60 * 1000)
+    public void logMetrics() {
+        try {
+            log.info("关注流推送开销：{}", metrics());
+        } catch (Exception e) {
+            log.warn("关注流推送指标读取失败", e);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
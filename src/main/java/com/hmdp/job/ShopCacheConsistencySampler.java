@@ -0,0 +1,244 @@
+package com.hmdp.job;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisData;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * 店铺缓存与数据库一致性抽样
+ * 用SCAN分批抽取cache:shop:*，批量查询数据库逐字段比对，统计不一致率和脏数据存在的时长，可选修复
+ * 单线程、最低优先级，并按每秒抽样数限速，避免与线上请求争抢redis和数据库
+ */
+@Slf4j
+@Component
+public class ShopCacheConsistencySampler {
+    private static final DefaultRedisScript<List> SCAN_SCRIPT;
+    static {
+        SCAN_SCRIPT = new DefaultRedisScript<>();
+        SCAN_SCRIPT.setLocation(new ClassPathResource("scan.lua"));
+        SCAN_SCRIPT.setResultType(List.class);
+    }
+    // 比对时忽略的字段
+    private static final Set<String> IGNORED_FIELDS = Collections.singleton("distance");
+    private static final int BATCH_SIZE = 20;
+
+    private static final ScheduledExecutorService SAMPLER_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-cache-consistency-sampler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    @Value("${hmdp.cache.consistency.enabled:true}")
+    private boolean enabled;
+    // 每轮抽样的key数量
+    @Value("${hmdp.cache.consistency.sample-size:200}")
+    private int sampleSize;
+    // 每秒最多比对的key数量
+    @Value("${hmdp.cache.consistency.max-keys-per-second:50}")
+    private int maxKeysPerSecond;
+    @Value("${hmdp.cache.consistency.interval-seconds:300}")
+    private long intervalSeconds;
+    // 是否修复不一致的缓存
+    @Value("${hmdp.cache.consistency.repair:false}")
+    private boolean repair;
+
+    // SCAN游标，跨轮次保存，保证逐步覆盖整个key空间
+    private String scanCursor = "0";
+
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong inconsistent = new AtomicLong();
+    private final AtomicLong repaired = new AtomicLong();
+    private final AtomicLong totalStaleSeconds = new AtomicLong();
+    private final AtomicLong maxStaleSeconds = new AtomicLong();
+    private final Map<String, AtomicLong> fieldMismatches = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            SAMPLER_EXECUTOR.scheduleWithFixedDelay(this::sampleSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        SAMPLER_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * 一致性指标快照
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long total = sampled.get();
+        long bad = inconsistent.get();
+        metrics.put("sampled", total);
+        metrics.put("inconsistent", bad);
+        metrics.put("inconsistentRate", total == 0 ? 0 : (double) bad / total);
+        metrics.put("repaired", repaired.get());
+        metrics.put("avgStaleSeconds", bad == 0 ? 0 : totalStaleSeconds.get() / bad);
+        metrics.put("maxStaleSeconds", maxStaleSeconds.get());
+        metrics.put("fieldMismatches", fieldMismatches);
+        return metrics;
+    }
+
+    private void sampleSafely() {
+        if (redisBreaker.getState() != RedisCircuitBreaker.State.CLOSED) {
+            // redis故障期间不抽样
+            return;
+        }
+        try {
+            sampleOnce();
+            log.info("店铺缓存一致性抽样：{}", metrics());
+        } catch (Exception e) {
+            // 抽样失败不影响业务，等待下一轮
+            log.warn("店铺缓存一致性抽样失败", e);
+        }
+    }
+
+    public void sampleOnce() throws InterruptedException {
+        // 每批比对后休眠，保证每秒比对数不超过上限
+        long pauseMillis = TimeUnit.SECONDS.toMillis(1) * BATCH_SIZE / Math.max(1, maxKeysPerSecond);
+        int remaining = sampleSize;
+        while (remaining > 0) {
+            List<String> keys = scan(BATCH_SIZE);
+            if (!keys.isEmpty()) {
+                compare(keys);
+                remaining -= keys.size();
+            }
+            if ("0".equals(scanCursor)) {
+                // 一轮扫描结束
+                return;
+            }
+            Thread.sleep(pauseMillis);
+        }
+    }
+
+    private List<String> scan(int count) {
+        List<?> result = stringRedisTemplate.execute(SCAN_SCRIPT, Collections.emptyList(),
+                scanCursor, CACHE_SHOP_KEY + "*", String.valueOf(count));
+        scanCursor = String.valueOf(result.get(0));
+        List<?> keys = (List<?>) result.get(1);
+        // 只保留cache:shop:{id}，跳过哈希桶等其他结构
+        return keys.stream()
+                .map(String::valueOf)
+                .filter(key -> NumberUtil.isLong(key.substring(CACHE_SHOP_KEY.length())))
+                .collect(Collectors.toList());
+    }
+
+    private void compare(List<String> keys) {
+        // 1. 批量读取缓存和数据库
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        List<Long> ids = keys.stream()
+                .map(key -> Long.valueOf(key.substring(CACHE_SHOP_KEY.length())))
+                .collect(Collectors.toList());
+        Map<Long, Shop> rows = shopService.listByIds(ids).stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+
+        for (int i = 0; i < keys.size(); i++) {
+            String json = values == null ? null : values.get(i);
+            if (json == null) {
+                // 抽样期间过期或被删除
+                continue;
+            }
+            sampled.incrementAndGet();
+            Shop row = rows.get(ids.get(i));
+
+            // 2. 缓存的是空值，只要数据库有数据就是不一致
+            if (StrUtil.isBlank(json)) {
+                if (row != null) {
+                    recordInconsistent(keys.get(i), row, Collections.singletonList("<null>"), null);
+                }
+                continue;
+            }
+
+            // 3. 逻辑过期的数据需要先取出data
+            JSONObject cachedJson = JSONUtil.parseObj(json);
+            RedisData redisData = null;
+            if (cachedJson.containsKey("expireTime") && cachedJson.containsKey("data")) {
+                redisData = JSONUtil.toBean(cachedJson, RedisData.class);
+                cachedJson = cachedJson.getJSONObject("data");
+            }
+            if (row == null) {
+                // 数据库已删除，缓存仍存在
+                recordInconsistent(keys.get(i), null, Collections.singletonList("<deleted>"), redisData);
+                continue;
+            }
+
+            // 4. 逐字段比对，数据库数据经过一次序列化，与缓存的精度保持一致
+            Map<String, Object> cached = BeanUtil.beanToMap(cachedJson.toBean(Shop.class));
+            Map<String, Object> actual = BeanUtil.beanToMap(JSONUtil.toBean(JSONUtil.toJsonStr(row), Shop.class));
+            List<String> diff = actual.keySet().stream()
+                    .filter(field -> !IGNORED_FIELDS.contains(field))
+                    .filter(field -> !Objects.equals(cached.get(field), actual.get(field)))
+                    .collect(Collectors.toList());
+            if (!diff.isEmpty()) {
+                recordInconsistent(keys.get(i), row, diff, redisData);
+            }
+        }
+    }
+
+    private void recordInconsistent(String key, Shop row, List<String> fields, RedisData redisData) {
+        inconsistent.incrementAndGet();
+        fields.forEach(field -> fieldMismatches.computeIfAbsent(field, f -> new AtomicLong()).incrementAndGet());
+
+        // 脏数据存在的时长：数据库最后一次更新到现在
+        if (row != null && row.getUpdateTime() != null) {
+            long staleSeconds = Math.max(0, Duration.between(row.getUpdateTime(), LocalDateTime.now()).getSeconds());
+            totalStaleSeconds.addAndGet(staleSeconds);
+            maxStaleSeconds.accumulateAndGet(staleSeconds, Math::max);
+        }
+        log.debug("店铺缓存与数据库不一致，key：{}，字段：{}", key, fields);
+
+        if (!repair) {
+            return;
+        }
+        if (redisData != null && row != null) {
+            // 逻辑过期的key不能删除，否则查询会直接返回空，这里保留原过期时间覆盖数据
+            long seconds = Math.max(1, Duration.between(LocalDateTime.now(), redisData.getExpireTime()).getSeconds());
+            cacheClient.setWithLogicalExpire(key, row, seconds, TimeUnit.SECONDS);
+        } else {
+            // 与更新店铺的策略一致，删除缓存，下次查询时重建
+            cacheClient.delete(key);
+        }
+        repaired.incrementAndGet();
+    }
+}
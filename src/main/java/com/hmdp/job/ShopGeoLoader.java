@@ -0,0 +1,318 @@
+package com.hmdp.job;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import com.hmdp.utils.SimpleRedisLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺坐标批量导入redis GEO
+ * 按id做keyset分页流式扫描tb_shop，每页按typeId分组后用一次pipeline批量GEOADD写入本次重建独有的影子key，
+ * 全部写完后RENAME覆盖正式key，查询不会看到加载了一半的数据，并发的重建也不会互相覆盖影子key；
+ * 重建开始时影子key登记在shop:geo:building:{typeId}中，店铺变更通过{@link #update}同时写入并记录店铺id，
+ * 替换前从数据库重新读取这些店铺，扫描期间的变更不会被旧数据覆盖；
+ * 没有店铺的类型写入空标记，查询时不会反复触发加载
+ */
+@Slf4j
+@Component
+public class ShopGeoLoader {
+    // 每加载多少店铺输出一次进度
+    private static final long PROGRESS_INTERVAL = 100000;
+
+    private static final ExecutorService LOAD_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "shop-geo-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 本节点已提交、尚未完成的懒加载
+    private final Set<Long> loading = ConcurrentHashMap.newKeySet();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    private static final DefaultRedisScript<Long> GEO_UPDATE_SCRIPT;
+    private static final DefaultRedisScript<Long> GEO_INSTALL_SCRIPT;
+    static {
+        GEO_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        GEO_UPDATE_SCRIPT.setLocation(new ClassPathResource("geo_update.lua"));
+        GEO_UPDATE_SCRIPT.setResultType(Long.class);
+        GEO_INSTALL_SCRIPT = new DefaultRedisScript<>();
+        GEO_INSTALL_SCRIPT.setLocation(new ClassPathResource("geo_install.lua"));
+        GEO_INSTALL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 全量重建所有类型的GEO数据，同一时间只允许一个实例重建
+     * 重建前获取每个类型的锁，正在懒加载的类型跳过，由懒加载完成
+     * @return 加载的店铺数量，其他实例正在重建时返回-1
+     */
+    public long rebuildAll() {
+        ILock rebuildLock = new SimpleRedisLock(LOCK_SHOP_GEO_REBUILD_NAME, stringRedisTemplate);
+        if (!rebuildLock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_SHOP_GEO_TTL))) {
+            return -1;
+        }
+        List<ILock> locks = new ArrayList<>();
+        try {
+            Set<Long> types = new HashSet<>();
+            for (ShopType type : shopTypeService.list()) {
+                ILock lock = typeLock(type.getId());
+                if (lock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_SHOP_GEO_TTL))) {
+                    locks.add(lock);
+                    types.add(type.getId());
+                }
+            }
+            return load(types);
+        } finally {
+            locks.forEach(this::unlock);
+            unlock(rebuildLock);
+        }
+    }
+
+    /**
+     * 某个类型的GEO数据未加载时在后台加载，不占用请求线程，调用方本次查询降级
+     * 同一类型在本节点只提交一次，多个节点之间由类型的锁保证只有一个加载；锁的租期覆盖整个加载过程，只有持有者能释放
+     */
+    public void loadInBackground(Long typeId) {
+        if (!loading.add(typeId)) {
+            return;
+        }
+        try {
+            LOAD_EXECUTOR.submit(() -> {
+                try {
+                    ILock lock = typeLock(typeId);
+                    if (!redisBreaker.execute(() -> lock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_SHOP_GEO_TTL)))) {
+                        return;
+                    }
+                    try {
+                        // 获取锁后再次检查，其他节点可能刚刚加载完成
+                        if (!isLoaded(typeId)) {
+                            load(Collections.singleton(typeId));
+                        }
+                    } finally {
+                        unlock(lock);
+                    }
+                } catch (Exception e) {
+                    log.warn("店铺GEO加载失败，类型：{}", typeId, e);
+                } finally {
+                    loading.remove(typeId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(typeId);
+        }
+    }
+
+    /**
+     * 某个类型的GEO数据是否已加载，没有店铺的类型由空标记表示已加载
+     * @throws RedisUnavailableException redis不可用
+     */
+    public boolean isLoaded(Long typeId) {
+        Long count = redisBreaker.execute(() -> stringRedisTemplate.countExistingKeys(
+                Arrays.asList(SHOP_GEO_KEY + typeId, SHOP_GEO_EMPTY_KEY + typeId)));
+        return count != null && count > 0;
+    }
+
+    /**
+     * 同步一个店铺的坐标，只写入已加载的正式key和正在重建的影子key
+     * @param point 坐标，为null时表示从该类型中删除
+     */
+    public void update(Long typeId, String member, Point point) {
+        List<String> keys = Arrays.asList(SHOP_GEO_KEY + typeId, SHOP_GEO_BUILDING_KEY + typeId, SHOP_GEO_EMPTY_KEY + typeId);
+        String shadowTtl = String.valueOf(TimeUnit.MINUTES.toSeconds(SHOP_GEO_SHADOW_TTL));
+        if (point == null) {
+            stringRedisTemplate.execute(GEO_UPDATE_SCRIPT, keys, shadowTtl, member);
+        } else {
+            stringRedisTemplate.execute(GEO_UPDATE_SCRIPT, keys,
+                    shadowTtl, member, String.valueOf(point.getX()), String.valueOf(point.getY()));
+        }
+    }
+
+    /**
+     * 由调用方持有这些类型的锁
+     * @param typeIds 要加载的商铺类型
+     */
+    private long load(Set<Long> typeIds) {
+        long begin = System.currentTimeMillis();
+        // 本次重建的影子key后缀
+        String buildId = UUID.randomUUID().toString(true);
+        long shadowTtl = TimeUnit.MINUTES.toSeconds(SHOP_GEO_SHADOW_TTL);
+        // 1. 扫描之前登记影子key，之后的店铺变更同时写入影子key并记录店铺id；
+        // 调用方持有类型的锁，登记集合中其他的影子key来自中断的重建，直接清除
+        redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            typeIds.forEach(type -> {
+                byte[] buildingKey = bytes(SHOP_GEO_BUILDING_KEY + type);
+                connection.del(buildingKey);
+                connection.sAdd(buildingKey, bytes(shadowKey(type, buildId)));
+                connection.expire(buildingKey, shadowTtl);
+            });
+            return null;
+        }));
+
+        // 本次重建中有店铺的类型
+        Set<Long> types = new HashSet<>();
+        long lastId = 0;
+        long total = 0;
+        long nextReport = PROGRESS_INTERVAL;
+        while (!typeIds.isEmpty()) {
+            // 2. keyset分页，避免深分页的offset扫描
+            List<Shop> shops = shopService.query()
+                    .select("id", "type_id", "x", "y")
+                    .in("type_id", typeIds)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + SHOP_GEO_LOAD_BATCH)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+
+            // 3. 按类型分组
+            Map<Long, List<RedisGeoCommands.GeoLocation<byte[]>>> groups = shops.stream()
+                    .filter(shop -> shop.getTypeId() != null && shop.getX() != null && shop.getY() != null)
+                    .collect(Collectors.groupingBy(Shop::getTypeId, Collectors.mapping(
+                            shop -> new RedisGeoCommands.GeoLocation<>(bytes(shop.getId().toString()), new Point(shop.getX(), shop.getY())),
+                            Collectors.toList())));
+            types.addAll(groups.keySet());
+
+            // 4. 一次pipeline写入整页，每条GEOADD最多SHOP_GEO_ADD_BATCH个成员；影子key带过期时间，重建中断时自动清理
+            redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                groups.forEach((type, locations) -> {
+                    byte[] key = bytes(shadowKey(type, buildId));
+                    for (int i = 0; i < locations.size(); i += SHOP_GEO_ADD_BATCH) {
+                        connection.geoAdd(key, locations.subList(i, Math.min(i + SHOP_GEO_ADD_BATCH, locations.size())));
+                    }
+                    connection.expire(key, shadowTtl);
+                });
+                typeIds.forEach(type -> connection.expire(bytes(SHOP_GEO_BUILDING_KEY + type), shadowTtl));
+                return null;
+            }));
+
+            total += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+            if (total >= nextReport) {
+                log.info("店铺GEO加载中，已加载：{}，类型数：{}，速度：{}条/秒", total, types.size(), throughput(total, begin));
+                nextReport += PROGRESS_INTERVAL;
+            }
+        }
+
+        // 5. 扫描期间有变更的店铺，从数据库重新读取后写入影子key
+        reapplyChanged(typeIds, buildId);
+
+        // 6. 影子key原子替换正式key并注销；没有店铺的类型删除正式key并写入空标记
+        for (Long type : typeIds) {
+            String shadowKey = shadowKey(type, buildId);
+            redisBreaker.execute(() -> stringRedisTemplate.execute(GEO_INSTALL_SCRIPT, Arrays.asList(
+                    SHOP_GEO_KEY + type, shadowKey, SHOP_GEO_BUILDING_KEY + type, SHOP_GEO_EMPTY_KEY + type, shadowKey + ":dirty")));
+        }
+        log.info("店铺GEO加载完成，类型：{}，店铺数：{}，类型数：{}，耗时：{}ms，速度：{}条/秒",
+                typeIds.size() == 1 ? typeIds.iterator().next() : "全部", total, types.size(), System.currentTimeMillis() - begin, throughput(total, begin));
+        return total;
+    }
+
+    /**
+     * 扫描某一页和写入影子key之间提交的变更会被这一页的旧数据覆盖，这里重新读取变更过的店铺，直到没有新的变更
+     * 变更先提交数据库再写redis，取出店铺id之后的读取一定能读到这次变更
+     */
+    private void reapplyChanged(Set<Long> typeIds, String buildId) {
+        long shadowTtl = TimeUnit.MINUTES.toSeconds(SHOP_GEO_SHADOW_TTL);
+        while (true) {
+            // 1. 取出并清空各类型的变更记录
+            List<Object> popped = redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                typeIds.forEach(type -> connection.sPop(bytes(shadowKey(type, buildId) + ":dirty"), SHOP_GEO_LOAD_BATCH));
+                return null;
+            }));
+            Set<Long> ids = new HashSet<>();
+            for (Object members : popped) {
+                if (members != null) {
+                    ((Collection<?>) members).forEach(member -> ids.add(Long.valueOf(member.toString())));
+                }
+            }
+            if (ids.isEmpty()) {
+                return;
+            }
+
+            // 2. 重新读取，店铺只写入当前类型的影子key，从其他类型的影子key中删除
+            Map<Long, Shop> shops = shopService.query()
+                    .select("id", "type_id", "x", "y")
+                    .in("id", ids)
+                    .list()
+                    .stream()
+                    .collect(Collectors.toMap(Shop::getId, shop -> shop));
+            redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long id : ids) {
+                    Shop shop = shops.get(id);
+                    byte[] member = bytes(id.toString());
+                    for (Long type : typeIds) {
+                        byte[] key = bytes(shadowKey(type, buildId));
+                        if (shop != null && type.equals(shop.getTypeId()) && shop.getX() != null && shop.getY() != null) {
+                            connection.geoAdd(key, new Point(shop.getX(), shop.getY()), member);
+                            connection.expire(key, shadowTtl);
+                        } else {
+                            connection.zRem(key, member);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * 通过熔断器释放锁，redis不可用时不影响调用方，锁在租期到期后自动释放
+     */
+    private void unlock(ILock lock) {
+        try {
+            redisBreaker.run(lock::unlock);
+        } catch (RedisUnavailableException e) {
+            log.warn("释放店铺GEO加载锁失败，等待租期到期", e);
+        }
+    }
+
+    private ILock typeLock(Long typeId) {
+        return new SimpleRedisLock(LOCK_SHOP_GEO_NAME + typeId, stringRedisTemplate);
+    }
+
+    private static String shadowKey(Long typeId, String buildId) {
+        return SHOP_GEO_SHADOW_KEY + typeId + ":" + buildId;
+    }
+
+    private static long throughput(long total, long begin) {
+        return total * 1000 / Math.max(1, System.currentTimeMillis() - begin);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp.job;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.ShopIndex;
+import com.hmdp.utils.ShopPartitioner;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SHOP_CHANGED_CHANNEL;
+
+/**
+ * 进程内店铺索引的加载器
+ * 应用启动后在后台线程按id分批扫描tb_shop构建所有索引，之后在店铺新增或修改的事务提交后增量更新；
+ * 变更先更新本节点的索引，再通过redis频道广播给其他节点
+ */
+@Slf4j
+@Component
+public class ShopIndexLoader implements MessageListener {
+    private static final int LOAD_BATCH = 1000;
+    // 本节点标识，收到自己广播的变更时跳过
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private List<ShopIndex> indexes;
+    @Resource
+    private ShopPartitioner partitioner;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @PostConstruct
+    public void init() {
+        // 只加载和更新本节点需要的索引
+        indexes = indexes.stream().filter(ShopIndex::enabled).collect(Collectors.toList());
+        listenerContainer.addMessageListener(this, new ChannelTopic(SHOP_CHANGED_CHANNEL));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        Thread thread = new Thread(this::loadSafely, "shop-index-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 店铺新增或修改，事务提交后再更新索引，没有事务时立即更新
+     * 更新本节点后广播给其他节点，redis不可用时排队，恢复后按顺序广播
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onShopChanged(ShopChangedEvent event) {
+        apply(event.getOld(), event.getCurrent());
+        String message = JSONUtil.toJsonStr(new JSONObject()
+                .set("node", NODE_ID)
+                .set("old", event.getOld())
+                .set("current", event.getCurrent()));
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.convertAndSend(SHOP_CHANGED_CHANNEL, message));
+    }
+
+    /**
+     * 其他节点广播的店铺变更
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            JSONObject json = JSONUtil.parseObj(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (NODE_ID.equals(json.getStr("node"))) {
+                return;
+            }
+            JSONObject old = json.getJSONObject("old");
+            apply(old == null ? null : old.toBean(Shop.class), json.getJSONObject("current").toBean(Shop.class));
+        } catch (Exception e) {
+            log.warn("店铺变更广播处理失败，message：{}", message, e);
+        }
+    }
+
+    /**
+     * 只处理本节点负责的分区，店铺移出负责的分区时从索引中删除
+     */
+    private void apply(Shop old, Shop current) {
+        boolean oldServed = old != null && partitioner.serves(old);
+        boolean currentServed = partitioner.serves(current);
+        if (!oldServed && !currentServed) {
+            return;
+        }
+        for (ShopIndex index : indexes) {
+            try {
+                if (currentServed) {
+                    index.onShopChanged(oldServed ? old : null, current);
+                } else {
+                    index.onShopRemoved(old);
+                }
+            } catch (Exception e) {
+                log.warn("店铺索引增量更新失败，index：{}，shopId：{}",
+                        index.getClass().getSimpleName(), current.getId(), e);
+            }
+        }
+    }
+
+    private void loadSafely() {
+        try {
+            load();
+        } catch (Exception e) {
+            // 加载失败时索引保持未就绪，查询走redis
+            log.error("店铺索引加载失败", e);
+        }
+    }
+
+    private void load() {
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        long total = 0;
+        while (true) {
+            List<Shop> shops = shopService.query()
+                    .select("id", "name", "type_id", "area", "x", "y", "sold", "score", "open_hours")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + LOAD_BATCH)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+            // 只加载本节点负责的分区
+            List<Shop> served = shops.stream().filter(partitioner::serves).collect(Collectors.toList());
+            for (ShopIndex index : indexes) {
+                index.load(served);
+            }
+            total += served.size();
+        }
+        indexes.forEach(ShopIndex::loadFinished);
+        log.info("店铺索引加载完成，店铺数：{}，耗时：{}ms", total, System.currentTimeMillis() - begin);
+    }
+}
@@ -0,0 +1,382 @@
+package com.hmdp.job;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import com.hmdp.utils.ShopPartitioner;
+import com.hmdp.utils.ShopRankField;
+import com.hmdp.utils.SimpleRedisLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 店铺排行榜全量重建
+ * 按id做keyset分页扫描tb_shop，每页用一次pipeline把各排序字段ZADD到本次重建独有的影子key，全部写完后RENAME覆盖正式key；
+ * 每个类型除了全局排行榜，还按商圈分区各有一个排行榜，和全局排行榜一起重建。
+ * 重建开始时重建id登记在shop:rank:building:{typeId}中，店铺变更通过{@link #update}同时写入影子key并记录店铺id，
+ * 替换前从数据库重新读取这些店铺；替换时删除这次重建没有写过的商圈排行榜
+ */
+@Slf4j
+@Component
+public class ShopRankLoader {
+
+    private static final ExecutorService LOAD_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "shop-rank-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final DefaultRedisScript<Long> RANK_UPDATE_SCRIPT;
+    private static final DefaultRedisScript<Long> RANK_INSTALL_SCRIPT;
+    static {
+        RANK_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        RANK_UPDATE_SCRIPT.setLocation(new ClassPathResource("rank_update.lua"));
+        RANK_UPDATE_SCRIPT.setResultType(Long.class);
+        RANK_INSTALL_SCRIPT = new DefaultRedisScript<>();
+        RANK_INSTALL_SCRIPT.setLocation(new ClassPathResource("rank_install.lua"));
+        RANK_INSTALL_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    // 本节点已提交、尚未完成的懒加载
+    private final Set<Long> loading = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 全量重建所有类型的排行榜，同一时间只允许一个实例重建
+     * 重建前获取每个类型的锁，正在懒加载的类型跳过，由懒加载完成
+     * @return 加载的店铺数量，其他实例正在重建时返回-1
+     */
+    public long rebuildAll() {
+        ILock rebuildLock = new SimpleRedisLock(LOCK_SHOP_RANK_REBUILD_NAME, stringRedisTemplate);
+        if (!rebuildLock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_SHOP_RANK_TTL))) {
+            return -1;
+        }
+        List<ILock> locks = new ArrayList<>();
+        try {
+            Set<Long> types = new HashSet<>();
+            for (ShopType type : shopTypeService.list()) {
+                ILock lock = typeLock(type.getId());
+                if (lock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_SHOP_RANK_TTL))) {
+                    locks.add(lock);
+                    types.add(type.getId());
+                }
+            }
+            return load(types);
+        } finally {
+            locks.forEach(this::unlock);
+            unlock(rebuildLock);
+        }
+    }
+
+    /**
+     * 某个类型的排行榜未加载时在后台加载，不占用请求线程，调用方本次查询降级
+     * 同一类型在本节点只提交一次，多个节点之间由类型的锁保证只有一个加载；锁的租期覆盖整个加载过程，只有持有者能释放
+     */
+    public void loadInBackground(Long typeId) {
+        if (!loading.add(typeId)) {
+            return;
+        }
+        try {
+            LOAD_EXECUTOR.submit(() -> {
+                try {
+                    ILock lock = typeLock(typeId);
+                    if (!redisBreaker.execute(() -> lock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_SHOP_RANK_TTL)))) {
+                        return;
+                    }
+                    try {
+                        // 获取锁后再次检查，其他节点可能刚刚加载完成
+                        if (!isLoaded(typeId)) {
+                            load(Collections.singleton(typeId));
+                        }
+                    } finally {
+                        unlock(lock);
+                    }
+                } catch (Exception e) {
+                    log.warn("店铺排行榜加载失败，类型：{}", typeId, e);
+                } finally {
+                    loading.remove(typeId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(typeId);
+        }
+    }
+
+    /**
+     * 某个类型的排行榜是否已加载
+     * @throws RedisUnavailableException redis不可用
+     */
+    public boolean isLoaded(Long typeId) {
+        return BooleanUtil.isTrue(redisBreaker.execute(() -> stringRedisTemplate.hasKey(SHOP_RANK_LOADED_KEY + typeId)));
+    }
+
+    /**
+     * 同步一个店铺在某个类型排行榜中的分数，只写入已加载的排行榜和正在重建的影子key
+     * @param scores key后缀(见ShopRankField.suffix) -> 分数，分数为null时从该排行榜删除
+     */
+    public void update(Long typeId, String member, Map<String, Integer> scores) {
+        stringRedisTemplate.execute(RANK_UPDATE_SCRIPT, updateKeys(typeId), updateArgs(typeId, member, scores).toArray());
+    }
+
+    /**
+     * 从数据库重新读取这些店铺，把某个字段的最新值写入排行榜，例如计数回写后同步销量和评论数
+     * 写入的是数据库中的值而不是增量，重复执行是安全的；每批店铺一次pipeline
+     */
+    public void refresh(Collection<Long> ids, ShopRankField field) {
+        byte[] script = bytes(RANK_UPDATE_SCRIPT.getScriptAsString());
+        for (List<Long> batch : CollUtil.split(ids, SHOP_RANK_LOAD_BATCH)) {
+            List<Shop> shops = shopService.query()
+                    .select("id", "type_id", "area", field.getColumn())
+                    .in("id", batch)
+                    .list();
+            redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : shops) {
+                    if (shop.getTypeId() == null) {
+                        continue;
+                    }
+                    Integer value = field.valueOf(shop);
+                    Map<String, Integer> scores = new HashMap<>(4);
+                    scores.put(field.suffix(shop.getTypeId()), value);
+                    scores.put(field.suffix(shop.getTypeId(), ShopPartitioner.partitionOf(shop)), value);
+                    List<String> keysAndArgs = new ArrayList<>(updateKeys(shop.getTypeId()));
+                    keysAndArgs.addAll(updateArgs(shop.getTypeId(), shop.getId().toString(), scores));
+                    connection.eval(script, ReturnType.INTEGER, 3,
+                            keysAndArgs.stream().map(ShopRankLoader::bytes).toArray(byte[][]::new));
+                }
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * rank_update.lua的KEYS：已加载标记、正在进行的重建id集合、现有排行榜的key后缀集合
+     */
+    private static List<String> updateKeys(Long typeId) {
+        return Arrays.asList(SHOP_RANK_LOADED_KEY + typeId, SHOP_RANK_BUILDING_KEY + typeId, SHOP_RANK_KEYS_KEY + typeId);
+    }
+
+    private static List<String> updateArgs(Long typeId, String member, Map<String, Integer> scores) {
+        List<String> args = new ArrayList<>(5 + scores.size() * 2);
+        args.add(SHOP_RANK_KEY);
+        args.add(SHOP_RANK_SHADOW_KEY);
+        args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(SHOP_RANK_SHADOW_TTL)));
+        args.add(typeId.toString());
+        args.add(member);
+        scores.forEach((suffix, score) -> {
+            args.add(suffix);
+            args.add(score == null ? "" : score.toString());
+        });
+        return args;
+    }
+
+    /**
+     * 由调用方持有这些类型的锁
+     * @param typeIds 要加载的商铺类型
+     */
+    private long load(Set<Long> typeIds) {
+        long begin = System.currentTimeMillis();
+        // 本次重建的影子key标识
+        String buildId = UUID.randomUUID().toString(true);
+        String prefix = buildPrefix(buildId);
+        long shadowTtl = TimeUnit.MINUTES.toSeconds(SHOP_RANK_SHADOW_TTL);
+        // 1. 扫描之前登记重建id，之后的店铺变更同时写入影子key并记录店铺id；
+        // 调用方持有类型的锁，登记集合中其他的重建id来自中断的重建，直接清除
+        redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            typeIds.forEach(type -> {
+                byte[] buildingKey = bytes(SHOP_RANK_BUILDING_KEY + type);
+                connection.del(buildingKey);
+                connection.sAdd(buildingKey, bytes(buildId));
+                connection.expire(buildingKey, shadowTtl);
+            });
+            return null;
+        }));
+
+        // 本次重建写过的类型及其分区
+        Map<Long, Set<String>> types = new HashMap<>();
+        long lastId = 0;
+        long total = 0;
+        while (!typeIds.isEmpty()) {
+            // 2. keyset分页，只查询排序需要的字段
+            List<Shop> shops = shopService.query()
+                    .select("id", "type_id", "area", "score", "sold", "comments")
+                    .in("type_id", typeIds)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + SHOP_RANK_LOAD_BATCH)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            shops.forEach(shop -> types.computeIfAbsent(shop.getTypeId(), k -> new HashSet<>()).add(ShopPartitioner.partitionOf(shop)));
+
+            // 3. 一次pipeline写入整页，影子key带过期时间，重建中断时自动清理；写过的key后缀记录下来，替换时使用
+            redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                Map<Long, Set<String>> touched = new HashMap<>();
+                for (Shop shop : shops) {
+                    String partition = ShopPartitioner.partitionOf(shop);
+                    byte[] member = bytes(shop.getId().toString());
+                    for (ShopRankField field : ShopRankField.values()) {
+                        Integer value = field.valueOf(shop);
+                        if (value == null) {
+                            continue;
+                        }
+                        String suffix = field.suffix(shop.getTypeId());
+                        String partitionSuffix = field.suffix(shop.getTypeId(), partition);
+                        connection.zAdd(bytes(prefix + suffix), value, member);
+                        connection.zAdd(bytes(prefix + partitionSuffix), value, member);
+                        Set<String> suffixes = touched.computeIfAbsent(shop.getTypeId(), k -> new HashSet<>());
+                        suffixes.add(suffix);
+                        suffixes.add(partitionSuffix);
+                    }
+                }
+                touched.forEach((type, suffixes) -> {
+                    byte[] keysKey = bytes(prefix + "keys:" + type);
+                    suffixes.forEach(suffix -> connection.expire(bytes(prefix + suffix), shadowTtl));
+                    connection.sAdd(keysKey, suffixes.stream().map(ShopRankLoader::bytes).toArray(byte[][]::new));
+                    connection.expire(keysKey, shadowTtl);
+                });
+                typeIds.forEach(type -> connection.expire(bytes(SHOP_RANK_BUILDING_KEY + type), shadowTtl));
+                return null;
+            }));
+            total += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+
+        // 4. 扫描期间有变更的店铺，从数据库重新读取后写入影子key
+        reapplyChanged(typeIds, buildId, types);
+
+        // 5. 影子key原子替换正式key，删除这次重建没有写过的排行榜，并标记为已加载
+        for (Long type : typeIds) {
+            redisBreaker.execute(() -> stringRedisTemplate.execute(RANK_INSTALL_SCRIPT,
+                    Arrays.asList(SHOP_RANK_LOADED_KEY + type, SHOP_RANK_BUILDING_KEY + type,
+                            SHOP_RANK_KEYS_KEY + type, prefix + "keys:" + type),
+                    SHOP_RANK_KEY, prefix, buildId));
+        }
+        log.info("店铺排行榜加载完成，类型：{}，店铺数：{}，类型数：{}，耗时：{}ms",
+                typeIds.size() == 1 ? typeIds.iterator().next() : "全部", total, types.size(), System.currentTimeMillis() - begin);
+        return total;
+    }
+
+    /**
+     * 扫描某一页和写入影子key之间提交的变更会被这一页的旧数据覆盖，这里重新读取变更过的店铺，直到没有新的变更
+     * 店铺只保留在当前类型、当前商圈的影子key中，从本次重建写过的其他影子key中删除
+     * @param types 本次重建写过的类型及其分区，新出现的分区会加入其中
+     */
+    private void reapplyChanged(Set<Long> typeIds, String buildId, Map<Long, Set<String>> types) {
+        String prefix = buildPrefix(buildId);
+        long shadowTtl = TimeUnit.MINUTES.toSeconds(SHOP_RANK_SHADOW_TTL);
+        while (true) {
+            // 1. 取出并清空变更记录
+            List<String> members = redisBreaker.execute(() -> stringRedisTemplate.opsForSet().pop(prefix + "dirty", SHOP_RANK_LOAD_BATCH));
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            Set<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toSet());
+
+            // 2. 重新读取，写入当前类型、当前商圈的影子key，从其他影子key中删除
+            Map<Long, Shop> shops = shopService.query()
+                    .select("id", "type_id", "area", "score", "sold", "comments")
+                    .in("id", ids)
+                    .list()
+                    .stream()
+                    .collect(Collectors.toMap(Shop::getId, shop -> shop));
+            shops.values().stream()
+                    .filter(shop -> typeIds.contains(shop.getTypeId()))
+                    .forEach(shop -> types.computeIfAbsent(shop.getTypeId(), k -> new HashSet<>()).add(ShopPartitioner.partitionOf(shop)));
+            redisBreaker.executeBatch(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long id : ids) {
+                    Shop shop = shops.get(id);
+                    byte[] member = bytes(id.toString());
+                    for (Long type : typeIds) {
+                        boolean current = shop != null && type.equals(shop.getTypeId());
+                        String shopPartition = current ? ShopPartitioner.partitionOf(shop) : null;
+                        Set<String> written = new HashSet<>();
+                        for (ShopRankField field : ShopRankField.values()) {
+                            Integer value = current ? field.valueOf(shop) : null;
+                            List<String> suffixes = new ArrayList<>();
+                            suffixes.add(field.suffix(type));
+                            for (String partition : types.getOrDefault(type, Collections.emptySet())) {
+                                suffixes.add(field.suffix(type, partition));
+                            }
+                            for (String suffix : suffixes) {
+                                byte[] key = bytes(prefix + suffix);
+                                boolean mine = suffix.equals(field.suffix(type)) || suffix.equals(field.suffix(type, shopPartition));
+                                if (value != null && mine) {
+                                    connection.zAdd(key, value, member);
+                                    connection.expire(key, shadowTtl);
+                                    written.add(suffix);
+                                } else {
+                                    connection.zRem(key, member);
+                                }
+                            }
+                        }
+                        if (!written.isEmpty()) {
+                            byte[] keysKey = bytes(prefix + "keys:" + type);
+                            connection.sAdd(keysKey, written.stream().map(ShopRankLoader::bytes).toArray(byte[][]::new));
+                            connection.expire(keysKey, shadowTtl);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+    }
+
+    /**
+     * 通过熔断器释放锁，redis不可用时不影响调用方，锁在租期到期后自动释放
+     */
+    private void unlock(ILock lock) {
+        try {
+            redisBreaker.run(lock::unlock);
+        } catch (RedisUnavailableException e) {
+            log.warn("释放店铺排行榜加载锁失败，等待租期到期", e);
+        }
+    }
+
+    private ILock typeLock(Long typeId) {
+        return new SimpleRedisLock(LOCK_SHOP_RANK_NAME + typeId, stringRedisTemplate);
+    }
+
+    /**
+     * 一次重建的影子key前缀，影子key为前缀加上key后缀；keys:{typeId}记录写过的key后缀，dirty记录变更的店铺
+     */
+    private static String buildPrefix(String buildId) {
+        return SHOP_RANK_SHADOW_KEY + buildId + ":";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.job;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UvCounter;
+import com.hmdp.utils.UvTarget;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 独立访客的周、月数据合并
+ * 一个完整的周、月结束后，用PFMERGE把每个对象的日数据合并成周、月数据，日数据过期后仍能按周、月统计；
+ * 合并完成后写入标记，已合并的不会重复合并。每次检查日数据仍然完整(UV_DAY_TTL天内)的所有周、月，
+ * 任务停止一段时间后错过的合并也能补上。
+ * 访问记录先进入UvCounter的内存队列再异步写入redis，一天结束后还要等待rollup-grace-minutes，
+ * 最后一天的访问写入之后才合并，避免合并后写入的访问被标记挡住
+ */
+@Slf4j
+@Component
+public class UvRollupJob {
+    private static final int ROLLUP_BATCH = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 一天结束后等待内存队列中的访问写入redis的时间
+    @Value("${hmdp.uv.rollup-grace-minutes:10}")
+    private long graceMinutes;
+
+    /**
+     * 同一时间只允许一个实例合并
+     */
+    @Scheduled(fixedDelayString = "${hmdp.uv.rollup-millis:3600000}")
+    public void rollup() {
+        // 只释放自己持有的锁，合并超过锁的有效期时不会删除其他实例的锁
+        ILock lock = new SimpleRedisLock(LOCK_UV_ROLLUP_NAME, stringRedisTemplate);
+        if (!lock.tryLock(TimeUnit.MINUTES.toSeconds(LOCK_UV_ROLLUP_TTL))) {
+            return;
+        }
+        try {
+            // 日数据只保留UV_DAY_TTL天，开始日期更早的周、月已经不完整，不再合并
+            LocalDateTime now = LocalDateTime.now();
+            LocalDate oldest = now.toLocalDate().minusDays(UV_DAY_TTL - 1);
+            // 结束超过等待时间的最后一天，之后结束的周、月下次再合并
+            LocalDate settled = now.minusMinutes(graceMinutes).toLocalDate().minusDays(1);
+            for (UvTarget target : UvTarget.values()) {
+                LocalDate weekEnd = settled.with(TemporalAdjusters.previousOrSame(DayOfWeek.SUNDAY));
+                for (; !weekEnd.minusDays(6).isBefore(oldest); weekEnd = weekEnd.minusWeeks(1)) {
+                    rollup(target, UvCounter.weekOf(weekEnd), weekEnd.minusDays(6), weekEnd, UV_WEEK_TTL);
+                }
+                LocalDate monthEnd = settled.plusDays(1).withDayOfMonth(1).minusDays(1);
+                for (; !monthEnd.withDayOfMonth(1).isBefore(oldest); monthEnd = monthEnd.withDayOfMonth(1).minusDays(1)) {
+                    rollup(target, UvCounter.monthOf(monthEnd), monthEnd.withDayOfMonth(1), monthEnd, UV_MONTH_TTL);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("UV周、月数据合并失败，下次检查时重试", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 合并一个周或月的数据
+     * @param ttlDays 合并后的数据和标记的有效天数
+     */
+    private void rollup(UvTarget target, String period, LocalDate begin, LocalDate end, long ttlDays) throws IOException {
+        String marker = target.rollupKey(period);
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(marker))) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        // 1. 这段时间内有访问的对象id
+        List<String> days = new ArrayList<>();
+        List<String> idsKeys = new ArrayList<>();
+        for (LocalDate date = begin; !date.isAfter(end); date = date.plusDays(1)) {
+            days.add(UvCounter.dayOf(date));
+            idsKeys.add(target.idsKey(UvCounter.dayOf(date)));
+        }
+        String idsKey = target.idsKey(period);
+        stringRedisTemplate.opsForSet().unionAndStore(idsKeys.get(0), idsKeys.subList(1, idsKeys.size()), idsKey);
+
+        // 2. SSCAN分批，每批一次pipeline合并
+        long ttl = TimeUnit.DAYS.toSeconds(ttlDays);
+        long merged = 0;
+        List<String> batch = new ArrayList<>(ROLLUP_BATCH);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(idsKey, ScanOptions.scanOptions().count(ROLLUP_BATCH).build())) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() >= ROLLUP_BATCH) {
+                    merged += merge(target, period, days, batch, ttl);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            merged += merge(target, period, days, batch, ttl);
+        }
+
+        // 3. 写入标记
+        stringRedisTemplate.delete(idsKey);
+        stringRedisTemplate.opsForValue().set(marker, String.valueOf(merged), ttlDays, TimeUnit.DAYS);
+        log.info("UV数据合并完成，类型：{}，周期：{}，对象数：{}，耗时：{}ms",
+                target, period, merged, System.currentTimeMillis() - start);
+    }
+
+    private int merge(UvTarget target, String period, List<String> days, List<String> ids, long ttl) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String id : ids) {
+                Long targetId = Long.valueOf(id);
+                byte[] key = bytes(target.key(targetId, period));
+                byte[][] sources = days.stream().map(day -> bytes(target.key(targetId, day))).toArray(byte[][]::new);
+                connection.pfMerge(key, sources);
+                connection.expire(key, ttl);
+            }
+            return null;
+        });
+        int size = ids.size();
+        ids.clear();
+        return size;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
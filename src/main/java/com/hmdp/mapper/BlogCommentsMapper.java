@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.BlogComments;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,6 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface BlogCommentsMapper extends BaseMapper<BlogComments> {
 
+    // 一次查询多条一级评论各自最早的limit条回复
+    List<BlogComments> queryTopReplies(@Param("parentIds") List<Long> parentIds, @Param("limit") int limit);
 }
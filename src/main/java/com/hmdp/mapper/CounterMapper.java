@@ -0,0 +1,23 @@
+package com.hmdp.mapper;
+
+import com.hmdp.utils.CounterField;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Map;
+
+/**
+ * 计数器批量写回
+ */
+public interface CounterMapper {
+
+    // 批量累加计数，deltas为id -> 增量
+    int increment(@Param("field") CounterField field, @Param("deltas") Map<Long, Long> deltas);
+
+    // 批量累加计数，记录不存在时插入
+    int upsert(@Param("field") CounterField field, @Param("deltas") Map<Long, Long> deltas);
+
+    // 计数器最近一次写回的批次号，加行锁
+    String selectBatchId(@Param("counter") String counter);
+
+    int saveBatchId(@Param("counter") String counter, @Param("batchId") String batchId);
+}
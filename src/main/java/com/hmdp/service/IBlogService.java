@@ -1,8 +1,11 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -13,4 +16,30 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IBlogService extends IService<Blog> {
 
+    // 分页查询当前用户的博文，传入cursor时使用游标分页
+    Result queryMyBlog(Integer current, String cursor);
+
+    // 按热度分页查询热门博文，传入cursor时使用游标分页
+    Result queryHotBlog(Integer current, String cursor);
+
+    // 查询店铺点赞数最多的博文，带作者信息
+    List<Blog> queryTopBlogOfShop(Long shopId, int limit);
+
+    // 发布博文
+    Result saveBlog(Blog blog);
+
+    // 滚动分页查询关注的人发布的博文
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    // 点赞或取消点赞
+    Result likeBlog(Long id);
+
+    // 查询最早点赞的用户
+    Result queryBlogLikes(Long id, Integer limit);
+
+    // 填充当前用户是否点赞以及尚未写回数据库的点赞数、评论数
+    void fillIsLike(List<Blog> blogs);
+
+    // 查询博文详情
+    Result queryBlogById(Long id);
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.Result;
 import com.hmdp.entity.Follow;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,15 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IFollowService extends IService<Follow> {
 
+    // 关注或取关
+    Result follow(Long followUserId, Boolean isFollow);
+
+    // 当前用户是否关注了某个用户
+    Result isFollow(Long followUserId);
+
+    // 当前用户和某个用户共同关注的人
+    Result followCommons(Long id);
+
+    // 确保用户的关注集合已加载到redis，返回集合的key
+    String ensureFollowsKey(Long userId);
 }
@@ -16,6 +16,24 @@ public interface IShopService extends IService<Shop> {
     // 根据商铺id查询商铺信息
     Result queryById(Long id);
 
+    // 新增店铺信息
+    Result saveShop(Shop shop);
+
     // 更新店铺信息
     Result updateShop(Shop shop);
+
+    // 根据商铺类型分页查询商铺信息，传入游标时使用游标分页，传入坐标时按距离排序，openNow只返回正在营业的
+    Result queryShopByType(Integer typeId, Integer current, String cursor, Double x, Double y, Boolean openNow);
+
+    // 根据商铺名称关键字分页查询商铺信息，可限定商圈，传入游标时使用游标分页
+    Result queryShopByName(String name, String area, Integer current, String cursor);
+
+    // 按评分、销量或评论数分页查询某个类型的商铺排行，可限定商圈
+    Result queryShopRank(Integer typeId, String area, String sortBy, Integer current);
+
+    // 根据名称前缀补全商铺名称
+    Result suggestShops(String prefix, Integer limit);
+
+    // 查询店铺详情页：店铺、优惠券和热门探店笔记
+    Result queryShopDetail(Long id);
 }
@@ -1,11 +1,32 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.BlogComments;
 import com.hmdp.mapper.BlogCommentsMapper;
 import com.hmdp.service.IBlogCommentsService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.service.IBlogService;
+import com.hmdp.utils.BlogHotRanker;
+import com.hmdp.utils.CounterField;
+import com.hmdp.utils.PageCursor;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryResolver;
+import com.hmdp.utils.WriteBehindCounter;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.SystemConstants.COMMENT_REPLY_PREVIEW_SIZE;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +38,147 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogCommentsServiceImpl extends ServiceImpl<BlogCommentsMapper, BlogComments> implements IBlogCommentsService {
 
+    // 状态为2(禁止查看)的评论不展示，被举报的评论照常展示
+    private static final String VISIBLE = "IFNULL(status, 0) != 2";
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private UserSummaryResolver userSummaryResolver;
+
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
+    @Resource
+    private BlogHotRanker blogHotRanker;
+
+    /**
+     * 发表评论，只有两级：回复某条评论时，归到该评论所在的一级评论下
+     * 博文的评论数先累加到redis，由CounterFlusher批量写回数据库
+     * @param comment 博文id、内容，回复评论时带上回复的评论id
+     * @return 评论id
+     */
+    @Override
+    public Result saveComment(BlogComments comment) {
+        Long blogId = comment.getBlogId();
+        if (blogId == null || StrUtil.isBlank(comment.getContent())) {
+            return Result.fail("评论内容不能为空！");
+        }
+        // 1. 确定所属的一级评论
+        long parentId = 0;
+        long answerId = 0;
+        if (comment.getAnswerId() != null && comment.getAnswerId() > 0) {
+            BlogComments answer = getById(comment.getAnswerId());
+            if (answer == null || !blogId.equals(answer.getBlogId())) {
+                return Result.fail("回复的评论不存在！");
+            }
+            answerId = answer.getId();
+            parentId = answer.getParentId() == 0 ? answer.getId() : answer.getParentId();
+        } else if (blogService.query().eq("id", blogId).count() == 0) {
+            return Result.fail("博文不存在！");
+        }
+
+        // 2. 保存评论
+        comment.setUserId(UserHolder.getUser().getId())
+                .setParentId(parentId)
+                .setAnswerId(answerId)
+                .setLiked(0)
+                .setStatus(false);
+        save(comment);
+
+        // 3. 评论数增量和热度
+        writeBehindCounter.increment(CounterField.BLOG_COMMENTS, blogId, 1);
+        blogHotRanker.increment(blogId, BlogHotRanker.COMMENT_WEIGHT);
+        return Result.ok(comment.getId());
+    }
+
+    /**
+     * 游标分页查询博文的一级评论，按id升序，走(blog_id, parent_id, id)索引
+     * 每条一级评论带上最早的几条回复，所有一级评论的回复一次查询
+     * @param blogId 博文id
+     * @param cursor 游标，第一页传空字符串
+     * @return CursorResult
+     */
+    @Override
+    public Result queryCommentsOfBlog(Long blogId, String cursor) {
+        // 1. 解析游标
+        JSONObject values = PageCursor.decode(cursor);
+        if (values == null) {
+            return Result.fail("无效的分页游标！");
+        }
+        // 2. 从上次的位置向后多查一条，用于判断是否还有下一页
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        List<BlogComments> roots = query()
+                .eq("blog_id", blogId)
+                .eq("parent_id", 0)
+                .gt("id", values.getLong("id", 0L))
+                .apply(VISIBLE)
+                .orderByAsc("id")
+                .last("limit " + (size + 1))
+                .list();
+        String next = null;
+        if (roots.size() > size) {
+            roots = roots.subList(0, size);
+            next = PageCursor.encode(new JSONObject().set("id", roots.get(size - 1).getId()));
+        }
+        if (roots.isEmpty()) {
+            return Result.ok(new CursorResult(roots, null));
+        }
+
+        // 3. 批量查询回复，每条一级评论多查一条，用于判断是否还有更多回复
+        List<Long> rootIds = roots.stream().map(BlogComments::getId).collect(Collectors.toList());
+        Map<Long, List<BlogComments>> replies = baseMapper.queryTopReplies(rootIds, COMMENT_REPLY_PREVIEW_SIZE + 1)
+                .stream().collect(Collectors.groupingBy(BlogComments::getParentId));
+        List<BlogComments> all = new ArrayList<>(roots);
+        for (BlogComments root : roots) {
+            List<BlogComments> list = replies.getOrDefault(root.getId(), Collections.emptyList());
+            boolean more = list.size() > COMMENT_REPLY_PREVIEW_SIZE;
+            root.setReplies(new ArrayList<>(more ? list.subList(0, COMMENT_REPLY_PREVIEW_SIZE) : list));
+            root.setHasMoreReplies(more);
+            all.addAll(root.getReplies());
+        }
+
+        // 4. 一级评论和回复的用户一起查询
+        fillUser(all);
+        return Result.ok(new CursorResult(roots, next));
+    }
+
+    /**
+     * 游标分页查询一级评论下的回复，按id升序，走(parent_id, id)索引
+     * @param parentId 一级评论id
+     * @param cursor 游标，第一页传空字符串
+     * @return CursorResult
+     */
+    @Override
+    public Result queryReplies(Long parentId, String cursor) {
+        // 1. 解析游标
+        JSONObject values = PageCursor.decode(cursor);
+        if (values == null) {
+            return Result.fail("无效的分页游标！");
+        }
+        // 2. 从上次的位置向后多查一条，用于判断是否还有下一页
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        List<BlogComments> replies = query()
+                .eq("parent_id", parentId)
+                .gt("id", values.getLong("id", 0L))
+                .apply(VISIBLE)
+                .orderByAsc("id")
+                .last("limit " + (size + 1))
+                .list();
+        String next = null;
+        if (replies.size() > size) {
+            replies = replies.subList(0, size);
+            next = PageCursor.encode(new JSONObject().set("id", replies.get(size - 1).getId()));
+        }
+        fillUser(replies);
+        return Result.ok(new CursorResult(replies, next));
+    }
+
+    private void fillUser(List<BlogComments> comments) {
+        userSummaryResolver.fill(comments, BlogComments::getUserId, (comment, user) -> {
+            comment.setName(user.getNickName());
+            comment.setIcon(user.getIcon());
+        });
+    }
 }
@@ -1,10 +1,46 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.json.JSONObject;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BlogFeed;
+import com.hmdp.utils.BlogHotRanker;
+import com.hmdp.utils.CounterField;
+import com.hmdp.utils.PageCursor;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryResolver;
+import com.hmdp.utils.WriteBehindCounter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -14,7 +50,370 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    @Resource
+    private UserSummaryResolver userSummaryResolver;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    @Resource
+    private BlogHotRanker blogHotRanker;
+
+    @Resource
+    private BlogFeed blogFeed;
+
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 分页查询当前用户的博文
+     * 游标分页按id升序，游标记录上一页最后一篇博文的id，走(user_id, id)索引
+     * @param current 页码
+     * @param cursor 游标，第一页传空字符串，为null时按页码查询
+     * @return
+     */
+    @Override
+    public Result queryMyBlog(Integer current, String cursor) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        if (cursor == null) {
+            // 根据用户查询，不查询总数
+            Page<Blog> page = query()
+                    .eq("user_id", user.getId()).page(new Page<>(current, size, false));
+            fillIsLike(page.getRecords());
+            return Result.ok(page.getRecords());
+        }
+
+        // 1. 解析游标
+        JSONObject values = PageCursor.decode(cursor);
+        if (values == null) {
+            return Result.fail("无效的分页游标！");
+        }
+        // 2. 从上次的位置向后多查一条，用于判断是否还有下一页
+        List<Blog> blogs = query()
+                .eq("user_id", user.getId())
+                .gt("id", values.getLong("id", 0L))
+                .orderByAsc("id")
+                .last("limit " + (size + 1))
+                .list();
+        // 3. 生成下一页的游标
+        String next = null;
+        if (blogs.size() > size) {
+            blogs = blogs.subList(0, size);
+            next = PageCursor.encode(new JSONObject().set("id", blogs.get(size - 1).getId()));
+        }
+        fillIsLike(blogs);
+        return Result.ok(new CursorResult(blogs, next));
+    }
+
+    /**
+     * 分页查询热门博文
+     * 优先从按时间衰减的热度排行榜查询，游标记录上一页最后一篇博文的热度和同热度要跳过的数量；
+     * 排行榜尚未建立或redis不可用时按点赞数查询数据库，游标记录上一页最后一篇博文的点赞数和id，走(liked, id)索引
+     * @param current 页码
+     * @param cursor 游标，第一页传空字符串，为null时按页码查询
+     * @return
+     */
+    @Override
+    public Result queryHotBlog(Integer current, String cursor) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        // 页码小于1时按第一页处理，和数据库分页一致
+        current = Math.max(1, current);
+        // 1. 解析游标
+        JSONObject values = null;
+        if (cursor != null) {
+            values = PageCursor.decode(cursor);
+            if (values == null) {
+                return Result.fail("无效的分页游标！");
+            }
+        }
+        List<Blog> records = null;
+        String next = null;
+
+        // 2. 热度排行榜，游标来自数据库查询时继续查询数据库
+        if (values == null || !values.containsKey("liked")) {
+            try {
+                if (values == null) {
+                    List<Long> ids = blogHotRanker.page((current - 1) * size, size);
+                    records = ids == null ? null : listByIdsInOrder(ids);
+                } else {
+                    BlogHotRanker.HotScroll scroll = blogHotRanker.scroll(
+                            values.getDouble("max"), values.getLong("epoch"), values.getInt("skip", 0), size);
+                    if (scroll != null) {
+                        records = listByIdsInOrder(scroll.getIds());
+                        next = scroll.getMax() == null ? null
+                                : PageCursor.encode(new JSONObject().set("max", scroll.getMax())
+                                        .set("skip", scroll.getSkip()).set("epoch", scroll.getEpoch()));
+                    }
+                }
+            } catch (RedisUnavailableException e) {
+                log.debug("热度排行榜不可用，按点赞数查询数据库");
+            }
+        }
+
+        // 3. 按点赞数查询数据库
+        if (records == null) {
+            if (values == null) {
+                // 不查询总数
+                Page<Blog> page = query()
+                        .orderByDesc("liked")
+                        .page(new Page<>(current, size, false));
+                records = page.getRecords();
+            } else {
+                // 从上次的位置向后多查一条：liked < 上次 或 (liked = 上次 且 id < 上次)
+                Integer liked = values.getInt("liked");
+                Long id = values.getLong("id");
+                records = query()
+                        .and(liked != null, w -> w.lt("liked", liked).or().eq("liked", liked).lt("id", id))
+                        .orderByDesc("liked", "id")
+                        .last("limit " + (size + 1))
+                        .list();
+                if (records.size() > size) {
+                    records = records.subList(0, size);
+                    Blog last = records.get(size - 1);
+                    next = PageCursor.encode(new JSONObject().set("liked", last.getLiked()).set("id", last.getId()));
+                }
+            }
+        }
+        // 查询用户和当前用户是否点赞
+        queryBlogUser(records);
+        fillIsLike(records);
+        return cursor == null ? Result.ok(records) : Result.ok(new CursorResult(records, next));
+    }
+
+    /**
+     * 发布博文，计入热度排行榜
+     * 推送任务在事务提交后写入，写入失败时在本地重试，不会出现保存了却永远不进入粉丝关注流的博文
+     * @param blog 博文
+     * @return 博文id
+     */
+    @Override
+    @Transactional
+    public Result saveBlog(Blog blog) {
+        // 获取登录用户
+        UserDTO user = UserHolder.getUser();
+        blog.setUserId(user.getId());
+        // 点赞数和评论数只由计数器累加，不接受客户端传入的值
+        blog.setLiked(0);
+        blog.setComments(0);
+        // 保存探店博文
+        save(blog);
+        // 事务提交后写入发件箱，粉丝不多时推送到粉丝的收件箱
+        blogFeed.publishAfterCommit(user.getId(), blog.getId(), System.currentTimeMillis());
+        blogHotRanker.increment(blog.getId(), BlogHotRanker.CREATE_WEIGHT);
+        if (blog.getShopId() != null) {
+            writeBehindCounter.increment(CounterField.SHOP_COMMENTS, blog.getShopId(), 1);
+        }
+        // 返回id
+        return Result.ok(blog.getId());
+    }
+
+    /**
+     * 查询店铺点赞数最多的博文，走(shop_id, liked)索引
+     * @param shopId 店铺id
+     * @param limit 数量
+     * @return
+     */
+    @Override
+    public List<Blog> queryTopBlogOfShop(Long shopId, int limit) {
+        List<Blog> blogs = query()
+                .eq("shop_id", shopId)
+                .orderByDesc("liked", "id")
+                .last("limit " + limit)
+                .list();
+        queryBlogUser(blogs);
+        return blogs;
+    }
+
+    /**
+     * 滚动分页查询关注的人发布的博文
+     * 按发布时间降序取不晚于max的，跳过时间等于max的前offset个，见BlogFeed
+     * @param max 上一页最后一篇的时间戳
+     * @param offset 上一页末尾与最后一篇时间相同的数量
+     * @return ScrollResult
+     */
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        if (offset == null || offset < 0) {
+            return Result.fail("offset不能小于0！");
+        }
+        // 收件箱和发件箱最多只保留FEED_MAX_SIZE篇，更大的offset没有意义
+        offset = Math.min(offset, FEED_MAX_SIZE);
+        Long userId = UserHolder.getUser().getId();
+        // 1. 归并收件箱和关注的大V的发件箱
+        BlogFeed.FeedPage page;
+        try {
+            page = blogFeed.read(userId, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        } catch (RedisUnavailableException e) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+        ScrollResult result = new ScrollResult();
+        if (page.getIds().isEmpty()) {
+            result.setList(Collections.emptyList());
+            return Result.ok(result);
+        }
+
+        // 2. 批量查询博文、作者和是否点赞
+        List<Blog> blogs = listByIdsInOrder(page.getIds());
+        queryBlogUser(blogs);
+        fillIsLike(blogs);
+        result.setList(blogs);
+        result.setMinTime(page.getMinTime());
+        result.setOffset(page.getOffset());
+        return Result.ok(result);
+    }
+
+    /**
+     * 点赞或取消点赞
+     * 点赞集合blog:liked:{id}的成员是用户id，分数是点赞时间；点赞数的增量由CounterFlusher定时写回数据库
+     * @param id 博文id
+     * @return
+     */
+    @Override
+    public Result likeBlog(Long id) {
+        // 不存在的博文不能点赞，否则会进入热度排行榜
+        if (query().eq("id", id).count() == 0) {
+            return Result.fail("博文不存在！");
+        }
+        String userId = UserHolder.getUser().getId().toString();
+        long now = System.currentTimeMillis();
+        Long likedAt;
+        try {
+            // 判断是否已点赞、修改点赞集合、累加增量在一个脚本中完成
+            likedAt = redisBreaker.execute(() -> stringRedisTemplate.execute(
+                    LIKE_SCRIPT, Arrays.asList(BLOG_LIKED_KEY + id, BLOG_LIKE_DELTA_KEY),
+                    userId, String.valueOf(now), id.toString()));
+        } catch (RedisUnavailableException e) {
+            return Result.fail("服务繁忙，请稍后再试");
+        }
+        if (likedAt == null || likedAt == 0) {
+            blogHotRanker.increment(id, BlogHotRanker.LIKE_WEIGHT, now);
+        } else {
+            // 取消点赞，按点赞时的权重扣回，而不是按现在的权重
+            blogHotRanker.increment(id, -BlogHotRanker.LIKE_WEIGHT, likedAt);
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 查询博文详情，带上作者、是否点赞和最新的点赞数、评论数
+     * @param id 博文id
+     * @return
+     */
+    @Override
+    public Result queryBlogById(Long id) {
+        Blog blog = getById(id);
+        if (blog == null) {
+            return Result.fail("博文不存在！");
+        }
+        List<Blog> blogs = Collections.singletonList(blog);
+        queryBlogUser(blogs);
+        fillIsLike(blogs);
+        return Result.ok(blog);
+    }
+
+    /**
+     * 查询最早点赞的用户
+     * @param id 博文id
+     * @param limit 数量
+     * @return 用户列表，按点赞时间升序
+     */
+    @Override
+    public Result queryBlogLikes(Long id, Integer limit) {
+        // 1. 按点赞时间取出前limit个用户id
+        int size = Math.max(1, Math.min(limit, SystemConstants.MAX_PAGE_SIZE));
+        Set<String> members;
+        try {
+            members = redisBreaker.execute(
+                    () -> stringRedisTemplate.opsForZSet().range(BLOG_LIKED_KEY + id, 0, size - 1));
+        } catch (RedisUnavailableException e) {
+            return Result.ok(Collections.emptyList());
+        }
+        if (members == null || members.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 2. 批量查询用户，保持点赞的顺序
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, UserDTO> summaries = userSummaryResolver.resolve(ids);
+        List<UserDTO> users = ids.stream().map(summaries::get).filter(Objects::nonNull).collect(Collectors.toList());
+        return Result.ok(users);
+    }
+
+    /**
+     * 填充当前用户是否点赞，并把尚未写回数据库的增量加到点赞数和评论数上
+     * 增量和是否点赞各一次pipeline查询所有博文；未登录或redis不可用时isLike为false
+     */
+    @Override
+    public void fillIsLike(List<Blog> blogs) {
+        if (blogs == null || blogs.isEmpty()) {
+            return;
+        }
+        // 1. 尚未写回数据库的增量
+        List<Long> ids = blogs.stream().map(Blog::getId).collect(Collectors.toList());
+        Map<CounterField, Map<Long, Long>> deltas = writeBehindCounter.deltas(
+                ids, CounterField.BLOG_LIKED, CounterField.BLOG_COMMENTS);
+        for (Blog blog : blogs) {
+            blog.setLiked(WriteBehindCounter.apply(blog.getLiked(), deltas.get(CounterField.BLOG_LIKED).get(blog.getId())));
+            blog.setComments(WriteBehindCounter.apply(blog.getComments(), deltas.get(CounterField.BLOG_COMMENTS).get(blog.getId())));
+            blog.setIsLike(false);
+        }
+
+        // 2. 当前用户是否点赞
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            return;
+        }
+        List<Object> results;
+        try {
+            results = redisBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] member = bytes(user.getId().toString());
+                for (Long id : ids) {
+                    connection.zScore(bytes(BLOG_LIKED_KEY + id), member);
+                }
+                return null;
+            }));
+        } catch (RedisUnavailableException e) {
+            return;
+        }
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(results.get(i) != null);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 按id批量查询博文，保持传入的顺序，不存在的跳过
+     */
+    private List<Blog> listByIdsInOrder(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Map<Long, Blog> blogs = listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, Function.identity()));
+        return ids.stream().map(blogs::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    private void queryBlogUser(List<Blog> blogs) {
+        userSummaryResolver.fill(blogs, Blog::getUserId, (blog, user) -> {
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        });
+    }
 }
@@ -1,11 +1,38 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IUserService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CounterField;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.UserSummaryResolver;
+import com.hmdp.utils.WriteBehindCounter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -14,7 +41,235 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    @Resource
+    private UserSummaryResolver userSummaryResolver;
+
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
+    @Resource
+    private IUserService userService;
+
+    // redis不可用时未能删除的关注集合(用户id)，定时重试直到删除成功；不进入熔断器的重放队列，队列满时会被丢弃
+    private final Set<Long> staleFollows = ConcurrentHashMap.newKeySet();
+
+    private static final DefaultRedisScript<Long> FOLLOW_SCRIPT;
+    private static final DefaultRedisScript<Long> FOLLOW_LOAD_SCRIPT;
+    static {
+        FOLLOW_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_SCRIPT.setLocation(new ClassPathResource("follow.lua"));
+        FOLLOW_SCRIPT.setResultType(Long.class);
+        FOLLOW_LOAD_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_LOAD_SCRIPT.setLocation(new ClassPathResource("follow_load.lua"));
+        FOLLOW_LOAD_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 关注或取关
+     * 先写数据库，再同步已加载的关注集合
+     * @param followUserId 被关注的用户id
+     * @param isFollow true为关注，false为取关
+     * @return
+     */
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        Long userId = UserHolder.getUser().getId();
+        if (userId.equals(followUserId)) {
+            return Result.fail("不能关注自己！");
+        }
+        boolean changed;
+        if (BooleanUtil.isTrue(isFollow)) {
+            if (userService.getById(followUserId) == null) {
+                return Result.fail("用户不存在！");
+            }
+            Follow follow = new Follow();
+            follow.setUserId(userId);
+            follow.setFollowUserId(followUserId);
+            try {
+                changed = save(follow);
+            } catch (DuplicateKeyException e) {
+                // 已经关注过，由唯一索引保证
+                changed = false;
+            }
+        } else {
+            changed = remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserId));
+        }
+        if (changed) {
+            String op = BooleanUtil.isTrue(isFollow) ? "1" : "0";
+            List<String> keys = Arrays.asList(FOLLOWS_KEY + userId, FOLLOWS_VERSION_KEY + userId);
+            String ttl = String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOWS_TTL));
+            try {
+                redisBreaker.run(() -> stringRedisTemplate.execute(FOLLOW_SCRIPT, keys, op, followUserId.toString(), ttl));
+            } catch (RedisUnavailableException e) {
+                // 关注集合的变更不能排队重放(排队期间的读取会看到旧集合，队列满时还会丢弃)
+                // 改为记录下来，定时删除集合，下次读取时从数据库重建；删除重复执行也是安全的
+                staleFollows.add(userId);
+            }
+            // 关注数和粉丝数
+            long delta = BooleanUtil.isTrue(isFollow) ? 1 : -1;
+            writeBehindCounter.increment(CounterField.USER_FOLLOWEE, userId, delta);
+            writeBehindCounter.increment(CounterField.USER_FANS, followUserId, delta);
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 删除redis不可用期间变更过的关注集合，删除失败的留到下次
+     */
+    @Scheduled(fixedDelayString = "${hmdp.follow.invalidate-retry-millis:1000}")
+    public void invalidateStaleFollows() {
+        for (Long userId : staleFollows) {
+            try {
+                invalidateFollows(userId);
+            } catch (RedisUnavailableException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 删除关注集合并递增版本号，成功后不再重试
+     * @throws RedisUnavailableException redis不可用
+     */
+    private void invalidateFollows(Long userId) {
+        List<String> keys = Arrays.asList(FOLLOWS_KEY + userId, FOLLOWS_VERSION_KEY + userId);
+        String ttl = String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOWS_TTL));
+        redisBreaker.run(() -> stringRedisTemplate.execute(FOLLOW_SCRIPT, keys, "-", "", ttl));
+        staleFollows.remove(userId);
+        log.debug("已删除变更过的关注集合，userId：{}", userId);
+    }
+
+    /**
+     * 当前用户是否关注了某个用户
+     * 关注集合已加载时一次往返完成，redis不可用时查询数据库
+     * @param followUserId 被关注的用户id
+     * @return
+     */
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        String key = FOLLOWS_KEY + userId;
+        try {
+            if (staleFollows.contains(userId)) {
+                invalidateFollows(userId);
+            }
+            // 判断集合是否存在和是否是成员在一个pipeline中完成
+            List<Object> results = redisBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.exists(bytes(key));
+                connection.sIsMember(bytes(key), bytes(followUserId.toString()));
+                return null;
+            }));
+            if (BooleanUtil.isTrue((Boolean) results.get(0))) {
+                return Result.ok(BooleanUtil.isTrue((Boolean) results.get(1)));
+            }
+            return Result.ok(loadFollows(userId).contains(followUserId));
+        } catch (RedisUnavailableException e) {
+            int count = query().eq("user_id", userId).eq("follow_user_id", followUserId).count();
+            return Result.ok(count > 0);
+        }
+    }
+
+    /**
+     * 当前用户和某个用户共同关注的人，在redis中用SINTER求交集
+     * @param id 另一个用户的id
+     * @return 用户列表
+     */
+    @Override
+    public Result followCommons(Long id) {
+        Long userId = UserHolder.getUser().getId();
+        Set<Long> common;
+        try {
+            String key = ensureFollowsKey(userId);
+            String otherKey = ensureFollowsKey(id);
+            Set<String> members = redisBreaker.execute(() -> stringRedisTemplate.opsForSet().intersect(key, otherKey));
+            common = members == null ? Collections.emptySet() : toIds(members);
+        } catch (RedisUnavailableException e) {
+            // redis不可用时在内存中求交集
+            common = queryFollows(userId);
+            common.retainAll(queryFollows(id));
+        }
+        if (common.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        Map<Long, UserDTO> users = userSummaryResolver.resolve(common);
+        return Result.ok(new ArrayList<>(users.values()));
+    }
+
+    /**
+     * 确保用户的关注集合已加载
+     * @return 关注集合的key
+     */
+    @Override
+    public String ensureFollowsKey(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        // 本节点有未删除的旧集合时先删除，不读取旧集合
+        if (staleFollows.contains(userId)) {
+            invalidateFollows(userId);
+        }
+        if (!BooleanUtil.isTrue(redisBreaker.execute(() -> stringRedisTemplate.hasKey(key)))) {
+            loadFollows(userId);
+        }
+        return key;
+    }
+
+    /**
+     * 从数据库重建关注集合
+     * 查询数据库之前先读取版本号，查询期间有关注或取关时版本号变化，不写入旧的结果而是重新查询；集合已存在时不覆盖
+     * @return 关注的用户id
+     * @throws RedisUnavailableException redis不可用，或多次重建都遇到关注关系变更
+     */
+    private Set<Long> loadFollows(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        String versionKey = FOLLOWS_VERSION_KEY + userId;
+        String ttl = String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOWS_TTL));
+        for (int i = 0; i < FOLLOWS_LOAD_ATTEMPTS; i++) {
+            String version = redisBreaker.execute(() -> stringRedisTemplate.opsForValue().get(versionKey));
+            Set<Long> follows = queryFollows(userId);
+            List<String> args = new ArrayList<>(follows.size() + 3);
+            args.add(version == null ? "" : version);
+            args.add(ttl);
+            args.add(FOLLOWS_PLACEHOLDER);
+            for (Long follow : follows) {
+                args.add(follow.toString());
+            }
+            Long loaded = redisBreaker.execute(() -> stringRedisTemplate.execute(
+                    FOLLOW_LOAD_SCRIPT, Arrays.asList(key, versionKey), args.toArray()));
+            if (loaded != null && loaded == 1) {
+                return follows;
+            }
+        }
+        // 关注关系变更频繁，本次由调用方降级查询数据库
+        throw new RedisUnavailableException("关注集合重建冲突");
+    }
+
+    private Set<Long> queryFollows(Long userId) {
+        return query()
+                .select("follow_user_id")
+                .eq("user_id", userId)
+                .list()
+                .stream()
+                .map(Follow::getFollowUserId)
+                .collect(Collectors.toSet());
+    }
+
+    private static Set<Long> toIds(Set<String> members) {
+        return members.stream()
+                .filter(member -> !FOLLOWS_PLACEHOLDER.equals(member))
+                .map(Long::valueOf)
+                .collect(Collectors.toSet());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
 }
@@ -1,30 +1,75 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.JAXBUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopDetailDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.event.ShopChangedEvent;
+import com.hmdp.job.ShopGeoLoader;
+import com.hmdp.job.ShopRankLoader;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CounterField;
+import com.hmdp.utils.OpenHours;
+import com.hmdp.utils.PageCursor;
+import com.hmdp.utils.RedisCircuitBreaker;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopRankField;
+import com.hmdp.utils.ShopNameIndex;
+import com.hmdp.utils.ShopOpenHoursIndex;
+import com.hmdp.utils.ShopPartitioner;
+import com.hmdp.utils.ShopSuggestIndex;
+import com.hmdp.utils.ShopSpatialIndex;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.WriteBehindCounter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
-import java.util.Calendar;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -36,6 +81,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
     @Resource
@@ -44,6 +90,62 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
+    @Resource
+    private ShopSpatialIndex shopSpatialIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private ShopOpenHoursIndex shopOpenHoursIndex;
+
+    @Resource
+    private ShopPartitioner partitioner;
+
+    @Resource
+    private ShopSuggestIndex shopSuggestIndex;
+
+    @Resource
+    private ApplicationEventPublisher eventPublisher;
+
+    @Resource
+    private ShopGeoLoader shopGeoLoader;
+
+    @Resource
+    private ShopRankLoader shopRankLoader;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
+    @Resource
+    private IBlogService blogService;
+
+    // 是否使用紧凑哈希桶存储店铺缓存
+    @Value("${hmdp.cache.shop-bucket-enabled:false}")
+    private boolean shopBucketEnabled;
+
+    // 店铺详情页等待优惠券和笔记的最长时间
+    @Value("${hmdp.shop.detail.timeout-millis:300}")
+    private long shopDetailTimeoutMillis;
+
+    // 店铺详情页并行查询的线程池，队列有界，排满时直接降级而不是无限堆积
+    private static final ExecutorService SHOP_DETAIL_EXECUTOR = new ThreadPoolExecutor(
+            16, 16, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000), r -> {
+                Thread thread = new Thread(r, "shop-detail");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // 附近商铺优先查询进程内空间索引，关闭或索引未就绪时查询redis GEO
+    @Value("${hmdp.shop.nearby.local-index-enabled:true}")
+    private boolean nearbyLocalIndexEnabled;
+
     /**
      * 根据id查询店铺信息
      * @param id
@@ -51,6 +153,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Result queryById(Long id) {
+        // 紧凑哈希桶存储(工具类）
+        if (shopBucketEnabled) {
+            Shop shop = cacheClient.queryWithBucket(CACHE_SHOP_BUCKET_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            return shop == null ? Result.fail("店铺不存在！") : Result.ok(fillCounters(shop));
+        }
+
         // 解决缓存穿透(工具类）
         //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
@@ -66,8 +174,29 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
 
 
-        // 返回数据
-        return Result.ok(shop);
+        // 返回数据，加上尚未写回数据库的销量和评论数
+        return Result.ok(fillCounters(shop));
+    }
+
+    /**
+     * 新增店铺信息
+     * @param shop
+     * @return
+     */
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+
+        // 该类型的分页缓存失效
+        cacheClient.increment(CACHE_SHOP_TYPE_VERSION_KEY + shop.getTypeId());
+        // 写入附近商铺索引
+        updateShopGeo(null, shop);
+        updateShopRank(null, shop);
+        eventPublisher.publishEvent(new ShopChangedEvent(null, shop));
+
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     /**
@@ -82,13 +211,541 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(id == null) {
             return Result.fail("店铺id不可为空！");
         }
+        Shop old = getById(id);
+        if(old == null) {
+            return Result.fail("店铺不存在！");
+        }
 
         // 更新数据库
         updateById(shop);
+        // 未传入的字段沿用旧值，得到修改后的完整店铺
+        Shop updated = BeanUtil.copyProperties(old, Shop.class);
+        BeanUtil.copyProperties(shop, updated, CopyOptions.create().setIgnoreNullValue(true));
 
-        // 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 索引、排行榜和缓存在事务提交后再修改，回滚时redis和其他节点不会看到没有发生的修改
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                updateShopGeo(old, updated);
+                updateShopRank(old, updated);
+                eventPublisher.publishEvent(new ShopChangedEvent(old, updated));
+
+                // 新旧类型的分页缓存失效
+                cacheClient.increment(CACHE_SHOP_TYPE_VERSION_KEY + old.getTypeId());
+                if(shop.getTypeId() != null && !shop.getTypeId().equals(old.getTypeId())) {
+                    cacheClient.increment(CACHE_SHOP_TYPE_VERSION_KEY + shop.getTypeId());
+                }
+
+                // 删除缓存
+                cacheClient.delete(CACHE_SHOP_KEY + id);
+                cacheClient.deleteFromBucket(CACHE_SHOP_BUCKET_KEY, id);
+            }
+        });
 
         return Result.ok();
     }
+
+    /**
+     * 根据商铺类型分页查询商铺信息
+     * 每页只缓存店铺id，店铺数据从店铺缓存中批量获取
+     * @param typeId 商铺类型
+     * @param current 页码
+     * @param cursor 游标，第一页传空字符串，为null时按页码查询
+     * @param openNow 查询附近商铺时只返回正在营业的
+     * @return
+     */
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, String cursor, Double x, Double y, Boolean openNow) {
+        // 传入了游标，按id向后查找
+        if (cursor != null) {
+            return queryShopByTypeCursor(typeId, cursor);
+        }
+
+        // 页码小于1时按第一页处理，和数据库分页一致
+        current = Math.max(1, current);
+
+        // 传入了坐标，按距离查询附近商铺
+        if (x != null && y != null) {
+            List<Shop> shops = queryNearbyShops(typeId, current, x, y, BooleanUtil.isTrue(openNow));
+            if (shops != null) {
+                return Result.ok(fillCounters(shops));
+            }
+        }
+
+        // 1. 查询类型当前的版本号，版本号变化后旧的分页缓存自然失效
+        String version = cacheClient.get(CACHE_SHOP_TYPE_VERSION_KEY + typeId);
+        String pageKey = CACHE_SHOP_TYPE_PAGE_KEY + typeId + ":" + (version == null ? 0 : version) + ":" + current;
+
+        // 2. 查询分页缓存
+        List<Long> ids;
+        String idsJson = cacheClient.get(pageKey);
+        if (idsJson != null) {
+            ids = JSONUtil.toList(idsJson, Long.class);
+        } else {
+            // 3. 未命中，分页查询id并写入缓存
+            Page<Shop> page = query()
+                    .select("id")
+                    .eq("type_id", typeId)
+                    .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false));
+            ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+            cacheClient.set(pageKey, ids, CACHE_SHOP_TYPE_PAGE_TTL, TimeUnit.MINUTES);
+        }
+
+        // 4. 从店铺缓存中批量获取
+        List<Shop> shops = cacheClient.queryBatch(
+                CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(fillCounters(shops));
+    }
+
+    /**
+     * 根据商铺名称关键字分页查询商铺信息
+     * 名称索引就绪且本节点负责该商圈时从倒排索引查询id，再从店铺缓存中批量获取；否则退回like查询
+     * @param name 商铺名称关键字
+     * @param area 商圈，为空时查询所有商圈
+     * @param current 页码
+     * @param cursor 游标，第一页传空字符串，为null时按页码查询
+     * @return
+     */
+    @Override
+    public Result queryShopByName(String name, String area, Integer current, String cursor) {
+        area = StrUtil.isBlank(area) ? null : area.trim();
+        if (cursor != null) {
+            return queryShopByNameCursor(name, area, cursor);
+        }
+        current = Math.max(1, current);
+        if (StrUtil.isNotBlank(name) && shopNameIndex.isReady() && servesLocally(area)) {
+            int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+            List<Long> ids = shopNameIndex.search(name, partitionOf(area), from, SystemConstants.MAX_PAGE_SIZE);
+            List<Shop> shops = cacheClient.queryBatch(
+                    CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            return Result.ok(fillCounters(shops));
+        }
+
+        Page<Shop> page = query()
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .eq(area != null, "area", area)
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+        return Result.ok(fillCounters(page.getRecords()));
+    }
+
+    /**
+     * 游标分页查询某个类型的商铺，游标记录上一页最后一个店铺的id，走(type_id, id)索引
+     */
+    private Result queryShopByTypeCursor(Integer typeId, String cursor) {
+        // 1. 解析游标
+        JSONObject values = PageCursor.decode(cursor);
+        if (values == null) {
+            return Result.fail("无效的分页游标！");
+        }
+        // 2. 从上次的位置向后多查一个id，用于判断是否还有下一页
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        List<Long> ids = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .gt("id", values.getLong("id", 0L))
+                .orderByAsc("id")
+                .last("limit " + (size + 1))
+                .list()
+                .stream().map(Shop::getId).collect(Collectors.toList());
+        String next = null;
+        if (ids.size() > size) {
+            ids = ids.subList(0, size);
+            next = PageCursor.encode(new JSONObject().set("id", ids.get(size - 1)));
+        }
+
+        // 3. 从店铺缓存中批量获取
+        List<Shop> shops = cacheClient.queryBatch(
+                CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(new CursorResult(fillCounters(shops), next));
+    }
+
+    /**
+     * 游标分页按名称查询商铺
+     * 名称索引的结果按相关度排序，游标记录已返回的数量；退回like查询时按id排序，游标记录上一页最后一个店铺的id
+     */
+    private Result queryShopByNameCursor(String name, String area, String cursor) {
+        // 1. 解析游标
+        JSONObject values = PageCursor.decode(cursor);
+        if (values == null) {
+            return Result.fail("无效的分页游标！");
+        }
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids;
+        JSONObject nextValues;
+
+        if (StrUtil.isNotBlank(name) && shopNameIndex.isReady() && servesLocally(area) && !values.containsKey("id")) {
+            // 2.1. 名称索引，多查一个用于判断是否还有下一页
+            int offset = values.getInt("offset", 0);
+            ids = shopNameIndex.search(name, partitionOf(area), offset, size + 1);
+            nextValues = new JSONObject().set("offset", offset + size);
+        } else {
+            // 2.2. 索引未就绪(或游标来自like查询)，按id向后查找；索引游标在重启后失效，从头开始
+            ids = query()
+                    .select("id")
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .eq(area != null, "area", area)
+                    .gt("id", values.getLong("id", 0L))
+                    .orderByAsc("id")
+                    .last("limit " + (size + 1))
+                    .list()
+                    .stream().map(Shop::getId).collect(Collectors.toList());
+            nextValues = ids.size() > size ? new JSONObject().set("id", ids.get(size - 1)) : null;
+        }
+        String next = null;
+        if (ids.size() > size) {
+            ids = ids.subList(0, size);
+            next = PageCursor.encode(nextValues);
+        }
+
+        // 3. 从店铺缓存中批量获取
+        List<Shop> shops = cacheClient.queryBatch(
+                CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(new CursorResult(fillCounters(shops), next));
+    }
+
+    /**
+     * 按评分、销量或评论数分页查询某个类型的商铺排行
+     * 每个类型每个字段一个全局ZSET，另外每个商圈一个ZSET；ZREVRANGE取出当前页的id，再从店铺缓存中批量获取；redis不可用时退回数据库排序
+     * @param typeId 商铺类型
+     * @param area 商圈，为空时查询所有商圈
+     * @param sortBy 排序字段：score、sold或comments
+     * @param current 页码
+     * @return
+     */
+    @Override
+    public Result queryShopRank(Integer typeId, String area, String sortBy, Integer current) {
+        ShopRankField field = ShopRankField.of(sortBy);
+        if (field == null) {
+            return Result.fail("不支持的排序字段！");
+        }
+        String shopArea = StrUtil.isBlank(area) ? null : area.trim();
+        // 页码小于1时按第一页处理，和数据库分页一致
+        current = Math.max(1, current);
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = from + SystemConstants.DEFAULT_PAGE_SIZE - 1;
+        try {
+            // 1. 该类型的排行榜未加载时在后台加载，本次查询退回数据库；各商圈的排行榜与全局排行榜一起加载
+            String key = shopArea == null ? field.key(typeId.longValue()) : field.key(typeId.longValue(), partitionOf(shopArea));
+            if (shopRankLoader.isLoaded(typeId.longValue())) {
+                // 2. 按分数降序取出当前页的id，排行榜不存在说明该商圈没有这个类型的店铺，或该字段全部为空
+                Set<String> members = redisBreaker.execute(() -> stringRedisTemplate.opsForZSet().reverseRange(key, from, end));
+                List<Long> ids = members == null ? Collections.emptyList()
+                        : members.stream().map(Long::valueOf).collect(Collectors.toList());
+                // 3. 从店铺缓存中批量获取
+                List<Shop> shops = cacheClient.queryBatch(
+                        CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                return Result.ok(fillCounters(shops));
+            }
+            shopRankLoader.loadInBackground(typeId.longValue());
+        } catch (RedisUnavailableException e) {
+            // redis不可用，退回数据库排序
+        }
+
+        // 排行榜正在加载，或redis不可用
+        Page<Shop> page = query()
+                .eq("type_id", typeId)
+                .eq(shopArea != null, "area", shopArea)
+                .orderByDesc(field.getColumn(), "id")
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false));
+        return Result.ok(fillCounters(page.getRecords()));
+    }
+
+    /**
+     * 根据名称前缀补全商铺名称，按销量和评分排序
+     * @param prefix 名称前缀
+     * @param limit 返回的数量
+     * @return
+     */
+    @Override
+    public Result suggestShops(String prefix, Integer limit) {
+        // 限制在[1, SUGGEST_TOP_K]之间，前缀树每个节点只保留了前SUGGEST_TOP_K个候选
+        int size = Math.max(1, Math.min(limit, SystemConstants.SUGGEST_TOP_K));
+        return Result.ok(shopSuggestIndex.suggest(prefix, size));
+    }
+
+    /**
+     * 查询店铺详情页：店铺、优惠券和点赞最多的探店笔记
+     * 优惠券和笔记提交到线程池并行查询，店铺在当前线程查询，耗时取决于最慢的部分；
+     * 店铺不存在时整体失败，其余部分超时或失败时返回空列表并标记在degraded中
+     * @param id 店铺id
+     * @return ShopDetailDTO
+     */
+    @Override
+    public Result queryShopDetail(Long id) {
+        long deadline = System.currentTimeMillis() + shopDetailTimeoutMillis;
+        // 1. 并行查询优惠券和笔记，各自有独立的缓存和过期时间
+        CompletableFuture<List<Voucher>> vouchers = supplyDetailPart(() -> cacheClient.queryList(
+                CACHE_SHOP_VOUCHER_KEY + id, Voucher.class, () -> voucherMapper.queryVoucherOfShop(id),
+                CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES));
+        CompletableFuture<List<Blog>> blogs = supplyDetailPart(() -> cacheClient.queryList(
+                CACHE_SHOP_BLOG_KEY + id, Blog.class, () -> blogService.queryTopBlogOfShop(id, SystemConstants.SHOP_DETAIL_BLOG_SIZE),
+                CACHE_SHOP_BLOG_TTL, TimeUnit.MINUTES));
+
+        // 2. 店铺是必需的部分，查询失败时不再等待其余部分
+        Result shopResult = queryById(id);
+        if (!BooleanUtil.isTrue(shopResult.getSuccess())) {
+            vouchers.cancel(false);
+            blogs.cancel(false);
+            return shopResult;
+        }
+
+        // 3. 在同一个截止时间内等待其余部分
+        ShopDetailDTO detail = new ShopDetailDTO();
+        List<String> degraded = new ArrayList<>(2);
+        detail.setShop((Shop) shopResult.getData());
+        detail.setVouchers(joinDetailPart(vouchers, deadline, "vouchers", id, degraded));
+        detail.setBlogs(joinDetailPart(blogs, deadline, "blogs", id, degraded));
+        // 笔记列表缓存是所有用户共享的，是否点赞在读取后单独填充
+        blogService.fillIsLike(detail.getBlogs());
+        detail.setDegraded(degraded);
+        return Result.ok(detail);
+    }
+
+    private <T> CompletableFuture<List<T>> supplyDetailPart(Supplier<List<T>> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, SHOP_DETAIL_EXECUTOR);
+        } catch (RejectedExecutionException e) {
+            // 线程池已满，该部分直接降级
+            CompletableFuture<List<T>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private <T> List<T> joinDetailPart(
+            CompletableFuture<List<T>> future, long deadline, String part, Long shopId, List<String> degraded) {
+        try {
+            long wait = Math.max(0, deadline - System.currentTimeMillis());
+            return future.get(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("店铺详情部分查询失败，part：{}，shopId：{}，原因：{}", part, shopId, e.toString());
+        }
+        future.cancel(false);
+        degraded.add(part);
+        return Collections.emptyList();
+    }
+
+    /**
+     * 查询附近商铺：按距离升序取出前current页的id，只从店铺缓存中批量获取当前页
+     * 优先查询进程内空间索引，避免每页一次redis往返；redis不可用时同样退回到本地索引
+     * @param openNow 只返回当前时间片营业的店铺，营业时间索引不可用时按店铺的营业时间过滤
+     * @return 附近商铺，两种索引都不可用时返回null
+     */
+    private List<Shop> queryNearbyShops(Integer typeId, Integer current, Double x, Double y, boolean openNow) {
+        // 1. 计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        // 进程内索引只包含本节点负责的分区，负责所有分区时才能用来查询附近商铺
+        boolean local = partitioner.servesAll();
+        int slot = OpenHours.slotOf(LocalDateTime.now());
+        LongPredicate filter = openNow && local && shopOpenHoursIndex.isReady()
+                ? shopOpenHoursIndex.openAt(typeId.longValue(), slot)
+                : null;
+
+        // 2. 查询到当前页末尾为止的店铺id和距离
+        List<ShopSpatialIndex.Neighbor> neighbors = null;
+        if (openNow && filter == null) {
+            // 营业时间索引不可用，取出半径内的全部店铺，按距离顺序分批读取店铺数据过滤
+            try {
+                neighbors = queryNearbyFromGeo(typeId, end, x, y, id -> true);
+            } catch (RedisUnavailableException e) {
+                // 营业时间索引和空间索引同时加载，本地索引同样不可用
+            }
+            if (neighbors != null) {
+                neighbors = filterOpenShops(neighbors, end, slot);
+            }
+        } else if (nearbyLocalIndexEnabled && local && shopSpatialIndex.isReady()) {
+            neighbors = queryNearbyFromIndex(typeId, end, x, y, filter);
+        } else {
+            try {
+                neighbors = queryNearbyFromGeo(typeId, end, x, y, filter);
+            } catch (RedisUnavailableException e) {
+                if (local && shopSpatialIndex.isReady()) {
+                    neighbors = queryNearbyFromIndex(typeId, end, x, y, filter);
+                }
+            }
+        }
+        if (neighbors == null) {
+            return null;
+        }
+        if (neighbors.size() <= from) {
+            return Collections.emptyList();
+        }
+
+        // 3. 截取当前页的id和距离
+        List<Long> ids = new ArrayList<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        Map<Long, Double> distances = new HashMap<>(SystemConstants.DEFAULT_PAGE_SIZE);
+        neighbors.stream().skip(from).forEach(neighbor -> {
+            ids.add(neighbor.getId());
+            distances.put(neighbor.getId(), neighbor.getDistance());
+        });
+
+        // 4. 从店铺缓存中批量获取，并填充距离
+        List<Shop> shops = cacheClient.queryBatch(
+                CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        shops.forEach(shop -> shop.setDistance(distances.get(shop.getId())));
+        return shops;
+    }
+
+    /**
+     * 按距离顺序分批从店铺缓存中读取店铺，保留在该时间片营业的，凑够end个为止
+     */
+    private List<ShopSpatialIndex.Neighbor> filterOpenShops(List<ShopSpatialIndex.Neighbor> neighbors, int end, int slot) {
+        List<ShopSpatialIndex.Neighbor> open = new ArrayList<>(end);
+        // 第一批就覆盖到当前页末尾，营业的店铺较多时一次读取即可
+        int batch = Math.max(end, SystemConstants.MAX_PAGE_SIZE);
+        for (int i = 0; i < neighbors.size() && open.size() < end; i += batch) {
+            List<ShopSpatialIndex.Neighbor> chunk = neighbors.subList(i, Math.min(i + batch, neighbors.size()));
+            List<Long> ids = chunk.stream().map(ShopSpatialIndex.Neighbor::getId).collect(Collectors.toList());
+            Set<Long> openIds = cacheClient.queryBatch(
+                            CACHE_SHOP_KEY, ids, Shop.class, this::listByIds, Shop::getId, CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                    .stream()
+                    .filter(shop -> {
+                        BitSet hours = OpenHours.parse(shop.getOpenHours());
+                        return hours != null && hours.get(slot);
+                    })
+                    .map(Shop::getId)
+                    .collect(Collectors.toSet());
+            chunk.stream().filter(neighbor -> openIds.contains(neighbor.getId())).limit(end - open.size()).forEach(open::add);
+        }
+        return open;
+    }
+
+    private List<ShopSpatialIndex.Neighbor> queryNearbyFromIndex(Integer typeId, int end, Double x, Double y, LongPredicate filter) {
+        return filter == null
+                ? shopSpatialIndex.radius(typeId.longValue(), x, y, SHOP_GEO_RADIUS, end)
+                : shopSpatialIndex.radius(typeId.longValue(), x, y, SHOP_GEO_RADIUS, end, filter);
+    }
+
+    /**
+     * 用GEORADIUS按距离升序查询前end个店铺
+     * @param filter 店铺过滤条件，不为null时取出半径内的全部店铺过滤后再截取
+     * @return 店铺id和距离，GEO数据尚未加载时返回null(已提交后台加载)
+     * @throws RedisUnavailableException redis不可用
+     */
+    private List<ShopSpatialIndex.Neighbor> queryNearbyFromGeo(Integer typeId, int end, Double x, Double y, LongPredicate filter) {
+        // 1. 确保该类型的GEO数据已加载，没有店铺的类型只有空标记，GEORADIUS返回空结果
+        String key = SHOP_GEO_KEY + typeId;
+        if (!shopGeoLoader.isLoaded(typeId.longValue())) {
+            // 在后台加载，本次查询降级
+            shopGeoLoader.loadInBackground(typeId.longValue());
+            return null;
+        }
+
+        // 2. 按距离升序查询，不过滤时只取到当前页的末尾
+        RedisGeoCommands.GeoRadiusCommandArgs args = RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending();
+        if (filter == null) {
+            args.limit(end);
+        }
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = redisBreaker.execute(() -> stringRedisTemplate.opsForGeo().radius(
+                key,
+                new Circle(new Point(x, y), new Distance(SHOP_GEO_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                args));
+        if (results == null) {
+            return Collections.emptyList();
+        }
+        return results.getContent().stream()
+                .map(result -> new ShopSpatialIndex.Neighbor(
+                        Long.valueOf(result.getContent().getName()), result.getDistance().getValue()))
+                .filter(neighbor -> filter == null || filter.test(neighbor.getId()))
+                .limit(end)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 把尚未写回数据库的增量加到销量和评论数上，一次pipeline查询所有店铺
+     * 店铺缓存中是写回之前的值，CounterFlusher写回后删除缓存
+     */
+    private List<Shop> fillCounters(List<Shop> shops) {
+        if (shops.isEmpty()) {
+            return shops;
+        }
+        List<Long> ids = shops.stream().map(Shop::getId).collect(Collectors.toList());
+        Map<CounterField, Map<Long, Long>> deltas = writeBehindCounter.deltas(
+                ids, CounterField.SHOP_SOLD, CounterField.SHOP_COMMENTS);
+        for (Shop shop : shops) {
+            shop.setSold(WriteBehindCounter.apply(shop.getSold(), deltas.get(CounterField.SHOP_SOLD).get(shop.getId())));
+            shop.setComments(WriteBehindCounter.apply(shop.getComments(), deltas.get(CounterField.SHOP_COMMENTS).get(shop.getId())));
+        }
+        return shops;
+    }
+
+    private Shop fillCounters(Shop shop) {
+        fillCounters(Collections.singletonList(shop));
+        return shop;
+    }
+
+    /**
+     * 本节点的进程内索引能否回答该商圈的查询
+     * @param area 商圈，为null时表示所有商圈
+     */
+    private boolean servesLocally(String area) {
+        return area == null ? partitioner.servesAll() : partitioner.serves(ShopPartitioner.partitionOf(area));
+    }
+
+    private static String partitionOf(String area) {
+        return area == null ? null : ShopPartitioner.partitionOf(area);
+    }
+
+    /**
+     * 店铺新增或修改后，同步排行榜，只写入已加载的排行榜和正在重建的影子key
+     * @param old 修改前的店铺，新增时为null
+     * @param shop 新增或修改后的完整店铺
+     */
+    private void updateShopRank(Shop old, Shop shop) {
+        String member = shop.getId().toString();
+        String partition = ShopPartitioner.partitionOf(shop);
+        boolean typeChanged = old != null && !old.getTypeId().equals(shop.getTypeId());
+        boolean partitionChanged = old != null && !ShopPartitioner.partitionOf(old).equals(partition);
+        if (old != null && !typeChanged && !partitionChanged
+                && Arrays.stream(ShopRankField.values()).allMatch(field -> Objects.equals(field.valueOf(old), field.valueOf(shop)))) {
+            // 排序字段没有变化
+            return;
+        }
+        // 1. 类型变化时从旧类型的全局和商圈排行榜删除，只有商圈变化时从旧商圈的排行榜删除
+        if (typeChanged || partitionChanged) {
+            Long oldType = old.getTypeId();
+            String oldPartition = ShopPartitioner.partitionOf(old);
+            Map<String, Integer> removed = new HashMap<>();
+            for (ShopRankField field : ShopRankField.values()) {
+                if (typeChanged) {
+                    removed.put(field.suffix(oldType), null);
+                }
+                removed.put(field.suffix(oldType, oldPartition), null);
+            }
+            redisBreaker.executeOrQueue(() -> shopRankLoader.update(oldType, member, removed));
+        }
+        if (shop.getTypeId() == null) {
+            return;
+        }
+        // 2. 写入当前类型的全局和商圈排行榜，字段为空时删除；以该类型的排行榜是否已加载为准，新商圈的排行榜随之创建
+        Map<String, Integer> scores = new HashMap<>();
+        for (ShopRankField field : ShopRankField.values()) {
+            Integer value = field.valueOf(shop);
+            scores.put(field.suffix(shop.getTypeId()), value);
+            scores.put(field.suffix(shop.getTypeId(), partition), value);
+        }
+        redisBreaker.executeOrQueue(() -> shopRankLoader.update(shop.getTypeId(), member, scores));
+    }
+
+    /**
+     * 店铺新增或修改后，同步附近商铺索引
+     * 只在该类型的GEO数据已加载时写入，避免半份数据被当成已加载；正在重建时同时写入影子key，避免RENAME后丢失
+     * @param old 修改前的店铺，新增时为null
+     * @param shop 新增或修改后的完整店铺
+     */
+    private void updateShopGeo(Shop old, Shop shop) {
+        Long typeId = shop.getTypeId();
+        String member = shop.getId().toString();
+        if (old != null && !old.getTypeId().equals(typeId)) {
+            redisBreaker.executeOrQueue(() -> shopGeoLoader.update(old.getTypeId(), member, null));
+        }
+        if (typeId == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        Point point = new Point(shop.getX(), shop.getY());
+        redisBreaker.executeOrQueue(() -> shopGeoLoader.update(typeId, member, point));
+    }
 }
@@ -3,15 +3,19 @@ package com.hmdp.service.impl;
 import cn.hutool.core.io.resource.ClassPathResource;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CounterField;
 import com.hmdp.utils.RedisIdWorker;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.WriteBehindCounter;
 import org.apache.logging.log4j.message.ReusableMessage;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
@@ -40,6 +44,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private WriteBehindCounter writeBehindCounter;
+
     @Resource
     private RedissonClient redissonClient;
 
@@ -136,6 +146,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         save(voucherOrder);
 
+        // 店铺销量，事务提交后累加
+        Voucher voucher = voucherService.getById(voucherId);
+        if (voucher != null && voucher.getShopId() != null) {
+            writeBehindCounter.increment(CounterField.SHOP_SOLD, voucher.getShopId(), 1);
+        }
+
         // 返回订单id
         return Result.ok(orderId);
     }
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 根据key的读写频率计算自适应ttl
+ * 读多写少的key存活更久，很少被读的key尽快过期释放内存，频繁更新的key缩短ttl减少脏数据窗口
+ */
+@Slf4j
+@Component
+public class AdaptiveTtlPolicy {
+    // 读频率的参照值(次/分钟)，达到该频率时ttl等于基础ttl
+    private static final double REFERENCE_READS_PER_MINUTE = 1.0;
+    // ttl分布统计的桶上界(秒)
+    private static final long[] HISTOGRAM_BOUNDS = {60, 300, 900, 1800, 3600, 7200, Long.MAX_VALUE};
+
+    @Value("${hmdp.cache.adaptive-ttl.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.cache.adaptive-ttl.min-seconds:60}")
+    private long minSeconds;
+    @Value("${hmdp.cache.adaptive-ttl.max-seconds:7200}")
+    private long maxSeconds;
+    // 频率统计的半衰期，越小对访问变化越敏感
+    @Value("${hmdp.cache.adaptive-ttl.half-life-seconds:300}")
+    private long halfLifeSeconds;
+    // 最多统计的key数量，超出后新key直接使用基础ttl
+    @Value("${hmdp.cache.adaptive-ttl.max-tracked-keys:100000}")
+    private int maxTrackedKeys;
+
+    private final Map<String, AccessStats> stats = new ConcurrentHashMap<>();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BOUNDS.length);
+
+    /**
+     * 记录一次读
+     */
+    public void recordRead(String key) {
+        AccessStats s = statsOf(key);
+        if (s != null) {
+            s.hit(true);
+        }
+    }
+
+    /**
+     * 记录一次写(更新/删除缓存)
+     */
+    public void recordWrite(String key) {
+        AccessStats s = statsOf(key);
+        if (s != null) {
+            s.hit(false);
+        }
+    }
+
+    /**
+     * 计算key的ttl
+     * @param key 缓存key
+     * @param time 基础ttl
+     * @return ttl，单位秒
+     */
+    public long ttlSeconds(String key, Long time, TimeUnit timeUnit) {
+        long baseSeconds = timeUnit.toSeconds(time);
+        AccessStats s = stats.get(key);
+        if (!enabled || s == null) {
+            return baseSeconds;
+        }
+
+        // 1. 换算成每分钟的读写频率
+        double[] rates = s.ratesPerMinute(halfLifeNanos(), halfLifeSeconds);
+        double reads = rates[0];
+        double writes = rates[1];
+
+        // 2. 读得越多ttl越长(对数增长)，写得越多ttl越短
+        double readFactor = Math.log1p(reads) / Math.log1p(REFERENCE_READS_PER_MINUTE);
+        double writeFactor = 1 / (1 + writes * baseSeconds / 60.0);
+        long ttl = (long) (baseSeconds * readFactor * writeFactor);
+
+        // 3. 限制在上下界之内，并加上10%以内的随机值，避免大量key同时过期(缓存雪崩)
+        ttl = Math.max(minSeconds, Math.min(maxSeconds, ttl));
+        ttl += RandomUtil.randomLong(0, ttl / 10 + 1);
+
+        recordTtl(ttl);
+        return ttl;
+    }
+
+    /**
+     * 上次report之后计算的ttl分布快照，key为桶的上界
+     */
+    public Map<String, Long> ttlDistribution() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+            snapshot.put(boundName(i), histogram.get(i));
+        }
+        return snapshot;
+    }
+
+    private static String boundName(int i) {
+        return HISTOGRAM_BOUNDS[i] == Long.MAX_VALUE ? "+Inf" : "<" + HISTOGRAM_BOUNDS[i] + "s";
+    }
+
+    /**
+     * 定期输出最近一个周期的ttl分布并清零，清理已经冷却的key
+     */
+    @Scheduled(fixedDelay = 5 * 60 * 1000)
+    public void report() {
+        long halfLife = halfLifeNanos();
+        stats.entrySet().removeIf(e -> e.getValue().isCold(halfLife));
+        Map<String, Long> distribution = ttlDistribution();
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+            histogram.addAndGet(i, -distribution.get(boundName(i)));
+        }
+        log.info("最近5分钟的自适应ttl分布：{}，统计中的key数量：{}", distribution, stats.size());
+    }
+
+    private AccessStats statsOf(String key) {
+        AccessStats s = stats.get(key);
+        if (s != null || !enabled) {
+            return s;
+        }
+        if (stats.size() >= maxTrackedKeys) {
+            return null;
+        }
+        return stats.computeIfAbsent(key, k -> new AccessStats());
+    }
+
+    private void recordTtl(long ttl) {
+        for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+            if (ttl < HISTOGRAM_BOUNDS[i]) {
+                histogram.incrementAndGet(i);
+                return;
+            }
+        }
+    }
+
+    private long halfLifeNanos() {
+        return TimeUnit.SECONDS.toNanos(halfLifeSeconds);
+    }
+
+    /**
+     * 指数衰减的读写计数，衰减后的计数 * ln2 / 半衰期 即为近似频率
+     * 每次读写只累加到无锁的LongAdder，计算ttl或清理时才加锁把新增的计数折算进衰减后的计数
+     */
+    private static class AccessStats {
+        private final LongAdder newReads = new LongAdder();
+        private final LongAdder newWrites = new LongAdder();
+        private double reads;
+        private double writes;
+        private long lastNanos = System.nanoTime();
+
+        void hit(boolean read) {
+            (read ? newReads : newWrites).increment();
+        }
+
+        synchronized double[] ratesPerMinute(long halfLifeNanos, long halfLifeSeconds) {
+            decay(halfLifeNanos);
+            double perMinute = Math.log(2) / halfLifeSeconds * 60;
+            return new double[]{reads * perMinute, writes * perMinute};
+        }
+
+        synchronized boolean isCold(long halfLifeNanos) {
+            decay(halfLifeNanos);
+            return reads < 0.01 && writes < 0.01;
+        }
+
+        private void decay(long halfLifeNanos) {
+            long now = System.nanoTime();
+            double factor = Math.pow(0.5, (double) (now - lastNanos) / halfLifeNanos);
+            // 上次折算之后的计数视为刚发生，不再衰减；取出后减去，不丢失并发的累加
+            long r = newReads.sum();
+            long w = newWrites.sum();
+            newReads.add(-r);
+            newWrites.add(-w);
+            reads = reads * factor + r;
+            writes = writes * factor + w;
+            lastNanos = now;
+        }
+    }
+}
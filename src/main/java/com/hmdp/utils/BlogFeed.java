@@ -0,0 +1,294 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.IFollowService;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 关注流，推拉结合
+ * 每篇博文都写入作者的发件箱feed:outbox:{authorId}；粉丝数不超过阈值的作者再由后台推送到每个粉丝的收件箱feed:{userId}，
+ * 超过阈值的作者记入大V集合，不再推送，粉丝读取时把收件箱和关注的大V的发件箱多路归并
+ */
+@Slf4j
+@Component
+public class BlogFeed {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+    @Resource
+    private IFollowService followService;
+
+    // 每次读取最多归并的大V发件箱数量，保证每页的工作量有上限
+    @Value("${hmdp.feed.max-pull-sources:50}")
+    private int maxPullSources;
+
+    // 事务提交后发布失败的博文(作者id、博文id、发布时间)，定时重试直到写入redis
+    private final Queue<long[]> unpublished = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong pulledSources = new AtomicLong();
+
+    /**
+     * 在事务提交后发布博文，回滚时不会留下不存在的博文的推送任务
+     * 发布失败的记录在本地，由retryUnpublished定时重试，不进入熔断器的重放队列(队列满时会被丢弃)
+     * @param time 发布时间戳，作为收件箱和发件箱中的分数
+     */
+    public void publishAfterCommit(Long authorId, Long blogId, long time) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publishOrRetry(authorId, blogId, time);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                publishOrRetry(authorId, blogId, time);
+            }
+        });
+    }
+
+    /**
+     * 重试事务提交后发布失败的博文，按发布的顺序，失败时保留剩余的下次再试
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.publish-retry-millis:5000}")
+    public void retryUnpublished() {
+        long[] post;
+        while ((post = unpublished.peek()) != null) {
+            try {
+                publish(post[0], post[1], post[2]);
+            } catch (Exception e) {
+                log.debug("博文发布重试失败，剩余：{}", unpublished.size());
+                return;
+            }
+            unpublished.poll();
+        }
+    }
+
+    private void publishOrRetry(Long authorId, Long blogId, long time) {
+        try {
+            publish(authorId, blogId, time);
+        } catch (Exception e) {
+            log.warn("博文发布失败，稍后重试，blogId：{}", blogId, e);
+            unpublished.add(new long[]{authorId, blogId, time});
+        }
+    }
+
+    /**
+     * 发布博文：写入发件箱，并提交推送任务，由FeedFanoutWorker在后台推送到粉丝的收件箱
+     * @param time 发布时间戳，作为收件箱和发件箱中的分数
+     * @throws RedisUnavailableException redis不可用
+     */
+    public void publish(Long authorId, Long blogId, long time) {
+        String outbox = FEED_OUTBOX_KEY + authorId;
+        Map<String, String> task = new HashMap<>(4);
+        task.put("authorId", authorId.toString());
+        task.put("blogId", blogId.toString());
+        task.put("time", String.valueOf(time));
+        redisBreaker.run(() -> {
+            stringRedisTemplate.opsForZSet().add(outbox, blogId.toString(), time);
+            stringRedisTemplate.opsForZSet().removeRange(outbox, 0, -(FEED_MAX_SIZE + 1));
+            stringRedisTemplate.opsForStream().add(FEED_FANOUT_STREAM_KEY, task);
+        });
+    }
+
+    /**
+     * 滚动读取关注流：按时间降序取不晚于max的，跳过时间等于max的前offset个
+     * 收件箱和每个大V发件箱各取offset+size个，按(时间, id)降序归并去重，与redis中的排序一致
+     * @param offset 不能小于0，超过FEED_MAX_SIZE时按FEED_MAX_SIZE处理，每个集合最多只保留这么多
+     * @return 当前页，不可用时抛出RedisUnavailableException
+     */
+    public FeedPage read(Long userId, long max, int offset, int size) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset不能小于0");
+        }
+        int skip = Math.min(offset, FEED_MAX_SIZE);
+        reads.incrementAndGet();
+        // 1. 本次要读取的有序集合：收件箱和关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        followedBigAuthors(userId, max).forEach(author -> keys.add(FEED_OUTBOX_KEY + author));
+        pulledSources.addAndGet(keys.size() - 1);
+
+        // 2. 一次pipeline读取每个集合中不晚于max的前offset+size个
+        int limit = skip + size;
+        List<Object> results = redisBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.zRevRangeByScoreWithScores(bytes(key), 0, max, 0, limit);
+            }
+            return null;
+        }));
+        return merge(results, max, skip, size);
+    }
+
+    /**
+     * 多路归并各个集合的读取结果
+     * @param sources 每个集合按(时间, id)降序的TypedTuple，可以为null
+     * @return 跳过offset个之后的一页
+     */
+    static FeedPage merge(List<?> sources, long max, int offset, int size) {
+        // 1. 每个集合已按降序排列，用堆每次取出最大的一个，取够offset+size个即停止
+        int limit = offset + size;
+        PriorityQueue<Cursor> heap = new PriorityQueue<>();
+        for (Object source : sources) {
+            Iterator<?> it = source == null ? Collections.emptyIterator() : ((Collection<?>) source).iterator();
+            Cursor cursor = Cursor.next(it);
+            if (cursor != null) {
+                heap.add(cursor);
+            }
+        }
+        List<FeedEntry> merged = new ArrayList<>(limit);
+        Set<String> seen = new HashSet<>();
+        while (!heap.isEmpty() && merged.size() < limit) {
+            Cursor top = heap.poll();
+            // 同一篇博文可能同时在收件箱和发件箱中(作者推送后成为大V)，只保留一次
+            if (seen.add(top.member)) {
+                merged.add(new FeedEntry(Long.parseLong(top.member), (long) top.score));
+            }
+            Cursor next = Cursor.next(top.it);
+            if (next != null) {
+                heap.add(next);
+            }
+        }
+
+        // 2. 跳过上一页已返回的，统计与最后一篇时间相同的数量
+        List<FeedEntry> page = offset >= merged.size() ? Collections.emptyList() : merged.subList(offset, merged.size());
+        List<Long> ids = new ArrayList<>(page.size());
+        long minTime = 0;
+        int os = 0;
+        for (FeedEntry entry : page) {
+            ids.add(entry.id);
+            os = entry.time == minTime ? os + 1 : 1;
+            minTime = entry.time;
+        }
+        // 整页时间都等于max时，还要加上这一页之前跳过的数量
+        if (!page.isEmpty() && minTime == max) {
+            os += offset;
+        }
+        return new FeedPage(ids, minTime, os);
+    }
+
+    /**
+     * 关注的大V，最多maxPullSources个，用户的关注集合与大V集合在redis中求交集
+     * 超过maxPullSources个时按不晚于max的最新一篇博文排序，取最近发布过的，每次读取选出的大V是确定的
+     */
+    private List<String> followedBigAuthors(Long userId, long max) {
+        String followsKey = followService.ensureFollowsKey(userId);
+        Set<String> authors = redisBreaker.execute(() -> stringRedisTemplate.opsForSet().intersect(followsKey, FEED_BIG_AUTHORS_KEY));
+        if (authors == null || authors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (authors.size() <= maxPullSources) {
+            return new ArrayList<>(authors);
+        }
+        // 一次pipeline读取每个大V不晚于max的最新一篇，没有的不参与归并
+        List<String> candidates = new ArrayList<>(authors);
+        List<Object> latest = redisBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String author : candidates) {
+                connection.zRevRangeByScoreWithScores(bytes(FEED_OUTBOX_KEY + author), 0, max, 0, 1);
+            }
+            return null;
+        }));
+        Map<String, Double> scores = new HashMap<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            Collection<?> tuples = (Collection<?>) latest.get(i);
+            if (tuples != null && !tuples.isEmpty()) {
+                Double score = ((ZSetOperations.TypedTuple<?>) tuples.iterator().next()).getScore();
+                scores.put(candidates.get(i), score == null ? 0 : score);
+            }
+        }
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                .limit(maxPullSources)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 拉取的开销，推送的开销见FeedFanoutWorker
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long readCount = reads.get();
+        metrics.put("reads", readCount);
+        metrics.put("avgPulledSourcesPerRead", readCount == 0 ? 0 : (double) pulledSources.get() / readCount);
+        return metrics;
+    }
+
+    @Scheduled(fixedDelay = 5 * 60 * 1000)
+    public void logMetrics() {
+        log.info("关注流拉取开销：{}", metrics());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 一个有序集合的读取位置
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+        private final String member;
+        private final double score;
+        private final Iterator<?> it;
+
+        private Cursor(String member, double score, Iterator<?> it) {
+            this.member = member;
+            this.score = score;
+            this.it = it;
+        }
+
+        static Cursor next(Iterator<?> it) {
+            if (!it.hasNext()) {
+                return null;
+            }
+            ZSetOperations.TypedTuple<?> tuple = (ZSetOperations.TypedTuple<?>) it.next();
+            double score = tuple.getScore() == null ? 0 : tuple.getScore();
+            return new Cursor(String.valueOf(tuple.getValue()), score, it);
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            // 时间降序，时间相同时按成员降序，与ZREVRANGEBYSCORE一致
+            int c = Double.compare(o.score, score);
+            return c != 0 ? c : o.member.compareTo(member);
+        }
+    }
+
+    private static final class FeedEntry {
+        private final long id;
+        private final long time;
+
+        FeedEntry(long id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class FeedPage {
+        private List<Long> ids;
+        private Long minTime;
+        private Integer offset;
+    }
+}
@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 博文热度排行榜
+ * 热度按时间指数衰减：每个事件(发布、点赞、评论)加上 权重 * 2^((事件时间 - 基准时间) / 半衰期)，
+ * 等价于所有已有热度每过一个半衰期减半，但只需对一个成员ZINCRBY；分数随时间指数增长，定时整体缩放并重置基准时间
+ */
+@Slf4j
+@Component
+public class BlogHotRanker {
+    // 事件权重
+    public static final double CREATE_WEIGHT = 3;
+    public static final double LIKE_WEIGHT = 1;
+    public static final double COMMENT_WEIGHT = 2;
+
+    private static final DefaultRedisScript<String> INCR_SCRIPT;
+    private static final DefaultRedisScript<Long> RESCALE_SCRIPT;
+    private static final DefaultRedisScript<List> SCROLL_SCRIPT;
+    static {
+        INCR_SCRIPT = new DefaultRedisScript<>();
+        INCR_SCRIPT.setLocation(new ClassPathResource("blog_hot_incr.lua"));
+        INCR_SCRIPT.setResultType(String.class);
+        RESCALE_SCRIPT = new DefaultRedisScript<>();
+        RESCALE_SCRIPT.setLocation(new ClassPathResource("blog_hot_rescale.lua"));
+        RESCALE_SCRIPT.setResultType(Long.class);
+        SCROLL_SCRIPT = new DefaultRedisScript<>();
+        SCROLL_SCRIPT.setLocation(new ClassPathResource("blog_hot_scroll.lua"));
+        SCROLL_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    private final long halfLifeMillis;
+
+    public BlogHotRanker(@Value("${hmdp.blog.hot.half-life-hours:24}") long halfLifeHours) {
+        this.halfLifeMillis = TimeUnit.HOURS.toMillis(halfLifeHours);
+    }
+
+    public long getHalfLifeMillis() {
+        return halfLifeMillis;
+    }
+
+    /**
+     * 博文热度变化，redis不可用时加入重放队列
+     * @param weight 事件权重，取消点赞等为负数
+     */
+    public void increment(Long blogId, double weight) {
+        increment(blogId, weight, System.currentTimeMillis());
+    }
+
+    /**
+     * 博文热度变化，按事件发生的时间计算权重，redis不可用时加入重放队列
+     * @param weight 事件权重，撤销事件时为负数
+     * @param eventTime 事件发生的时间戳，撤销事件时传入原事件的时间，扣回的正好是当时加上的热度
+     */
+    public void increment(Long blogId, double weight, long eventTime) {
+        String time = String.valueOf(eventTime);
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.execute(
+                INCR_SCRIPT, Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY),
+                blogId.toString(), String.valueOf(weight), time, String.valueOf(halfLifeMillis)));
+    }
+
+    /**
+     * 按页码查询
+     * @return 当前页的博文id，排行榜尚未建立时返回null
+     */
+    public List<Long> page(int from, int size) {
+        Set<String> members = redisBreaker.execute(
+                () -> stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, from, from + size - 1));
+        if ((members == null || members.isEmpty()) && !isBuilt()) {
+            return null;
+        }
+        List<Long> ids = new ArrayList<>(size);
+        if (members != null) {
+            members.forEach(member -> ids.add(Long.valueOf(member)));
+        }
+        return ids;
+    }
+
+    /**
+     * 按热度滚动查询：取热度不高于max的，跳过热度等于max的前skip个
+     * 热度每次整体缩放后基准时间改变，游标中的max按游标的基准时间换算，缩放前发出的游标不会跳过或重复
+     * @param max 上一页最后一个的热度，第一页为null
+     * @param epoch 游标的基准时间，第一页为null
+     * @return 当前页，排行榜尚未建立时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public HotScroll scroll(Double max, Long epoch, int skip, int size) {
+        List<String> result = redisBreaker.execute(() -> stringRedisTemplate.execute(
+                SCROLL_SCRIPT, Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY),
+                max == null ? "+inf" : String.valueOf(max), epoch == null ? "" : epoch.toString(),
+                String.valueOf(halfLifeMillis), String.valueOf(skip), String.valueOf(size)));
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        Long currentEpoch = Long.valueOf(result.get(0));
+        double maxScore = max == null ? Double.MAX_VALUE : Double.parseDouble(result.get(1));
+        List<Long> ids = new ArrayList<>(size);
+        double last = maxScore;
+        int same = 0;
+        for (int i = 2; i + 1 < result.size(); i += 2) {
+            ids.add(Long.valueOf(result.get(i)));
+            double score = Double.parseDouble(result.get(i + 1));
+            // 统计与最后一个热度相同的数量，下一页要跳过它们
+            same = score == last ? same + 1 : 1;
+            last = score;
+        }
+        // 整页热度都等于max时，还要加上这一页之前跳过的数量
+        int nextSkip = last == maxScore ? same + skip : same;
+        return new HotScroll(ids, ids.size() < size ? null : last, nextSkip, currentEpoch);
+    }
+
+    /**
+     * 定时整体缩放热度，重置基准时间
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.hot.rescale-millis:3600000}")
+    public void rescale() {
+        try {
+            stringRedisTemplate.execute(RESCALE_SCRIPT, Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_EPOCH_KEY),
+                    String.valueOf(System.currentTimeMillis()), String.valueOf(halfLifeMillis),
+                    String.valueOf(SystemConstants.BLOG_HOT_SIZE));
+        } catch (Exception e) {
+            log.warn("博文热度缩放失败", e);
+        }
+    }
+
+    private boolean isBuilt() {
+        return BooleanUtil.isTrue(redisBreaker.execute(() -> stringRedisTemplate.hasKey(BLOG_HOT_EPOCH_KEY)));
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotScroll {
+        private List<Long> ids;
+        // 下一页的起点，没有更多数据时为null
+        private Double max;
+        private int skip;
+        // max对应的基准时间
+        private Long epoch;
+    }
+}
@@ -1,35 +1,90 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.NumberUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.autoconfigure.cache.CacheProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 @Slf4j
 @Component
 public class CacheClient {
+    // 本地旧值缓存的容量
+    private static final int STALE_CACHE_SIZE = 10000;
+    // redis熔断期间，每秒最多放行到数据库的查询次数
+    private static final int DEGRADED_DB_PERMITS_PER_SECOND = 100;
+
     private final StringRedisTemplate stringRedisTemplate;
+    private final AdaptiveTtlPolicy ttlPolicy;
+    private final RedisCircuitBreaker redisBreaker;
+
+    // 最近从redis读到的值，redis不可用时作为降级数据
+    private final LocalStaleCache<String> staleCache = new LocalStaleCache<>(STALE_CACHE_SIZE);
+    private final AtomicLong dbPermitWindow = new AtomicLong();
+    private final AtomicInteger dbPermitsUsed = new AtomicInteger();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, AdaptiveTtlPolicy ttlPolicy, RedisCircuitBreaker redisBreaker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlPolicy = ttlPolicy;
+        this.redisBreaker = redisBreaker;
     }
 
     public void set(String key, Object value, Long time,  TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        String json = JSONUtil.toJsonStr(value);
+        staleCache.put(key, json);
+        // redis不可用时加入重放队列
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.opsForValue().set(key, json, time, timeUnit));
+    }
+
+    /**
+     * 删除缓存，同时记录一次写，用于自适应ttl
+     */
+    public void delete(String key) {
+        ttlPolicy.recordWrite(key);
+        staleCache.remove(key);
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.delete(key));
+    }
+
+    /**
+     * 读取字符串缓存，redis不可用时返回本地旧值
+     */
+    public String get(String key) {
+        try {
+            return getJson(key);
+        } catch (RedisUnavailableException e) {
+            return staleCache.get(key);
+        }
+    }
+
+    /**
+     * 自增计数，redis不可用时加入重放队列
+     */
+    public void increment(String key) {
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.opsForValue().increment(key));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
@@ -39,14 +94,23 @@ public class CacheClient {
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
 
         // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        staleCache.put(key, JSONUtil.toJsonStr(value));
+        String json = JSONUtil.toJsonStr(redisData);
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.opsForValue().set(key, json));
     }
 
     public <R, ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit) {
         // 根据id查询redis
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        ttlPolicy.recordRead(key);
+        String json;
+        try {
+            json = getJson(key);
+        } catch (RedisUnavailableException e) {
+            // redis不可用，降级
+            return queryDegraded(key, id, type, dbFallBack);
+        }
 
         // 判断是否存在
         if(StrUtil.isNotBlank(json)){
@@ -63,14 +127,15 @@ public class CacheClient {
         R r = dbFallBack.apply(id);
         if(r == null) {
             // 数据库未查到，将空值写入redis，防止缓存穿透（new）
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            this.set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
 
             return null;
         }
 
         // 数据库查到，则将数据写入redis。添加ttl，实现超时剔除，为缓存更新策略兜底
         //stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, timeUnit);
-        this.set(key, r, time, timeUnit);
+        // ttl根据key的读写频率自适应调整
+        this.set(key, r, ttlPolicy.ttlSeconds(key, time, timeUnit), TimeUnit.SECONDS);
 
         // 返回数据
         return r;
@@ -89,7 +154,13 @@ public class CacheClient {
             String keyPrefix, String lockPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit) {
         // 1. 根据id查询redis
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        ttlPolicy.recordRead(key);
+        String json;
+        try {
+            json = redisBreaker.execute(() -> stringRedisTemplate.opsForValue().get(key));
+        } catch (RedisUnavailableException e) {
+            return queryDegraded(key, id, type, dbFallBack);
+        }
 
         // 2. 判断是否存在
         if(StrUtil.isBlank(json)){
@@ -100,6 +171,7 @@ public class CacheClient {
         // 4. 命中，则需要先将json反序列化为java对象
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        staleCache.put(key, JSONUtil.toJsonStr(redisData.getData()));
 
         // 5 判断是否逻辑过期
         LocalDateTime expireTime = redisData.getExpireTime();
@@ -111,7 +183,13 @@ public class CacheClient {
         // 6. 过期，则开始缓存重建
         // 6.1 尝试获取互斥锁
         String lockKey = lockPrefix + id;
-        boolean islock = tryLock(lockKey);
+        boolean islock;
+        try {
+            islock = tryLock(lockKey);
+        } catch (RedisUnavailableException e) {
+            // redis不可用，无法重建，返回旧数据
+            return r;
+        }
 
         // 6.2 判断互斥锁是否获取成功
         if(islock){
@@ -124,8 +202,8 @@ public class CacheClient {
                 try {
                     // 查数据库
                     R newR = dbFallBack.apply(id);
-                    // 写入缓存
-                    this.setWithLogicalExpire(key, newR, time,  timeUnit);
+                    // 写入缓存，逻辑过期时间同样根据读写频率自适应调整
+                    this.setWithLogicalExpire(key, newR, ttlPolicy.ttlSeconds(key, time, timeUnit), TimeUnit.SECONDS);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 } finally {
@@ -144,7 +222,14 @@ public class CacheClient {
             String keyPrefix, String lockPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time,  TimeUnit timeUnit) {
         // 根据id查询redis
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        ttlPolicy.recordRead(key);
+        String json;
+        try {
+            json = getJson(key);
+        } catch (RedisUnavailableException e) {
+            // redis不可用，降级
+            return queryDegraded(key, id, type, dbFallBack);
+        }
 
         // 判断是否存在
         if(StrUtil.isNotBlank(json)){
@@ -162,7 +247,12 @@ public class CacheClient {
         String lockKey = lockPrefix + id;
         R r = null;
         try {
-            boolean isLock = tryLock(lockKey);
+            boolean isLock;
+            try {
+                isLock = tryLock(lockKey);
+            } catch (RedisUnavailableException e) {
+                return queryDegraded(key, id, type, dbFallBack);
+            }
 
             // 2. 判断互斥锁是否存在
             if(!isLock){
@@ -184,7 +274,8 @@ public class CacheClient {
 
             // 数据库查到，则将数据写入redis。添加ttl，实现超时剔除，为缓存更新策略兜底
             //stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-            this.set(key, r, time,  timeUnit);
+            // ttl根据key的读写频率自适应调整
+            this.set(key, r, ttlPolicy.ttlSeconds(key, time, timeUnit), TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } finally {
@@ -196,13 +287,218 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 写入紧凑哈希桶：id按区间分桶，过期时间记录在value头部
+     * @param bucketPrefix 桶key前缀
+     * @param id 实体id
+     * @param value 实体，为null时写入空值防止缓存穿透
+     */
+    public void setToBucket(String bucketPrefix, Long id, Object value, Long time, TimeUnit timeUnit) {
+        String bucketKey = bucketKey(bucketPrefix, id);
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(time);
+        String json = value == null ? "" : JSONUtil.toJsonStr(value);
+        staleCache.put(bucketPrefix + id, json);
+        // 整个桶的ttl兜底，长期无人写入的冷桶会被整体回收；桶的ttl只延长不缩短
+        long bucketTtl = Math.max(timeUnit.toSeconds(time) * 2, BUCKET_MIN_TTL_SECONDS);
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.execute(
+                BUCKET_SET_SCRIPT, Collections.singletonList(bucketKey),
+                bucketField(id), expireAt + BUCKET_HEADER_SEPARATOR + json, String.valueOf(bucketTtl)));
+    }
+
+    /**
+     * 从紧凑哈希桶中删除实体
+     */
+    public void deleteFromBucket(String bucketPrefix, Long id) {
+        ttlPolicy.recordWrite(bucketPrefix + id);
+        staleCache.remove(bucketPrefix + id);
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.opsForHash().delete(bucketKey(bucketPrefix, id), bucketField(id)));
+    }
+
+    /**
+     * 批量删除缓存和紧凑哈希桶中的实体，一次pipeline完成
+     * 不记录写，用于数据不是由用户修改、只需重新加载的场景(例如计数回写)，不影响自适应ttl
+     * @param keyPrefix 缓存key前缀
+     * @param bucketPrefix 桶key前缀
+     */
+    public void evict(String keyPrefix, String bucketPrefix, Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ids.forEach(id -> {
+            staleCache.remove(keyPrefix + id);
+            staleCache.remove(bucketPrefix + id);
+        });
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                connection.del((keyPrefix + id).getBytes(StandardCharsets.UTF_8));
+                connection.hDel(bucketKey(bucketPrefix, id).getBytes(StandardCharsets.UTF_8),
+                        bucketField(id).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * 使用紧凑哈希桶存储的查询，同样缓存空值解决缓存穿透
+     * @param bucketPrefix 桶key前缀
+     * @param id 实体id
+     */
+    public <R> R queryWithBucket(
+            String bucketPrefix, Long id, Class<R> type, Function<Long, R> dbFallBack, Long time, TimeUnit timeUnit) {
+        // 1. 查询桶中的field
+        String bucketKey = bucketKey(bucketPrefix, id);
+        String field = bucketField(id);
+        ttlPolicy.recordRead(bucketPrefix + id);
+        Object cached;
+        try {
+            cached = redisBreaker.execute(() -> stringRedisTemplate.opsForHash().get(bucketKey, field));
+        } catch (RedisUnavailableException e) {
+            return queryDegraded(bucketPrefix + id, id, type, dbFallBack);
+        }
+
+        // 2. 命中，解析头部的过期时间
+        if (cached != null) {
+            String value = cached.toString();
+            int idx = value.indexOf(BUCKET_HEADER_SEPARATOR);
+            String header = idx > 0 ? value.substring(0, idx) : "";
+            long expireAt = NumberUtil.isLong(header) ? Long.parseLong(header) : 0L;
+            // 格式不对的field视为已过期
+            if (expireAt > System.currentTimeMillis()) {
+                String json = value.substring(idx + 1);
+                staleCache.put(bucketPrefix + id, json);
+                // 空值，防止用空值访问数据库
+                return StrUtil.isBlank(json) ? null : JSONUtil.toBean(json, type);
+            }
+            // 3. field已过期，hash不支持field级ttl，这里惰性删除
+            redisBreaker.executeOrQueue(() -> stringRedisTemplate.opsForHash().delete(bucketKey, field));
+        }
+
+        // 4. 未命中，查询数据库
+        R r = dbFallBack.apply(id);
+        if (r == null) {
+            setToBucket(bucketPrefix, id, null, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+
+        // 5. 写回桶中，ttl根据读写频率自适应调整
+        setToBucket(bucketPrefix, id, r, ttlPolicy.ttlSeconds(bucketPrefix + id, time, timeUnit), TimeUnit.SECONDS);
+        return r;
+    }
+
+    private static final String BUCKET_HEADER_SEPARATOR = "|";
+    // 桶的最短ttl，桶中的空值也不会让整个桶很快过期
+    private static final long BUCKET_MIN_TTL_SECONDS = TimeUnit.MINUTES.toSeconds(CACHE_SHOP_TTL) * 2;
+    private static final DefaultRedisScript<Long> BUCKET_SET_SCRIPT;
+    static {
+        BUCKET_SET_SCRIPT = new DefaultRedisScript<>();
+        BUCKET_SET_SCRIPT.setLocation(new ClassPathResource("bucket_set.lua"));
+        BUCKET_SET_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 查询列表缓存，未命中时查询数据库并写入缓存，空列表同样缓存，防止缓存穿透
+     * redis不可用时读取本地旧值，没有旧值时查询数据库
+     */
+    public <R> List<R> queryList(String key, Class<R> type, Supplier<List<R>> dbFallBack, Long time, TimeUnit timeUnit) {
+        String json = get(key);
+        if (StrUtil.isNotBlank(json)) {
+            return JSONUtil.toList(json, type);
+        }
+        List<R> list = dbFallBack.get();
+        this.set(key, list, time, timeUnit);
+        return list;
+    }
+
+    /**
+     * 批量查询实体缓存：一次MGET读取，未命中的一次批量查询数据库，再用pipeline写回
+     * @param keyPrefix key前缀
+     * @param ids 实体id，返回结果保持该顺序，不存在的实体会被跳过
+     * @param dbFallBack 批量查询数据库，例如listByIds
+     * @param idGetter 从实体中取id
+     */
+    public <R, ID> List<R> queryBatch(
+            String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, List<R>> dbFallBack,
+            Function<R, ID> idGetter, Long time, TimeUnit timeUnit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1. 批量查询redis，不可用时读取本地旧值
+        List<String> keys = ids.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        keys.forEach(ttlPolicy::recordRead);
+        List<String> jsons;
+        boolean degraded = false;
+        try {
+            jsons = redisBreaker.execute(() -> stringRedisTemplate.opsForValue().multiGet(keys));
+        } catch (RedisUnavailableException e) {
+            jsons = keys.stream().map(staleCache::get).collect(Collectors.toList());
+            degraded = true;
+        }
+
+        // 2. 命中的直接反序列化，空值跳过，未命中的记录下来
+        Map<ID, R> found = new HashMap<>(ids.size());
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                staleCache.put(keys.get(i), json);
+                found.put(ids.get(i), JSONUtil.toBean(json, type));
+            } else if (json == null) {
+                misses.add(ids.get(i));
+            }
+        }
+
+        // 3. 未命中的批量查询数据库，并写回缓存
+        if (!misses.isEmpty()) {
+            if (degraded && !tryAcquireDbPermit()) {
+                throw new RuntimeException("服务繁忙，请稍后再试");
+            }
+            Map<String, String> values = new LinkedHashMap<>(misses.size());
+            for (R r : dbFallBack.apply(misses)) {
+                ID id = idGetter.apply(r);
+                found.put(id, r);
+                values.put(keyPrefix + id, JSONUtil.toJsonStr(r));
+            }
+            // 数据库中也不存在的写入空值，防止缓存穿透
+            misses.stream().filter(id -> !found.containsKey(id)).forEach(id -> values.put(keyPrefix + id, ""));
+            values.forEach(staleCache::put);
+            if (!degraded) {
+                setBatch(values, time, timeUnit);
+            }
+        }
+
+        // 4. 按传入的顺序返回
+        return ids.stream().map(found::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * 用pipeline批量写入缓存，空值使用CACHE_NULL_TTL，其余使用自适应ttl
+     */
+    private void setBatch(Map<String, String> values, Long time, TimeUnit timeUnit) {
+        Map<String, Long> ttls = new HashMap<>(values.size());
+        values.forEach((key, json) -> ttls.put(key, json.isEmpty()
+                ? TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL) : ttlPolicy.ttlSeconds(key, time, timeUnit)));
+        redisBreaker.executeOrQueue(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, json) -> connection.setEx(
+                    key.getBytes(StandardCharsets.UTF_8), ttls.get(key), json.getBytes(StandardCharsets.UTF_8)));
+            return null;
+        }));
+    }
+
+    private String bucketKey(String bucketPrefix, Long id) {
+        return bucketPrefix + (id / CACHE_BUCKET_SIZE);
+    }
+
+    private String bucketField(Long id) {
+        return String.valueOf(id % CACHE_BUCKET_SIZE);
+    }
+
     /**
      * 获取互斥锁
      * @param key
      * @return
      */
     private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
+        Boolean flag = redisBreaker.execute(() -> stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS));
 
         return BooleanUtil.isTrue(flag);
     }
@@ -212,6 +508,50 @@ public class CacheClient {
      * @param key
      */
     private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+        try {
+            redisBreaker.run(() -> stringRedisTemplate.delete(key));
+        } catch (RedisUnavailableException e) {
+            // 释放失败不重放，锁自身有ttl
+            log.warn("释放互斥锁失败，等待锁自动过期：{}", key);
+        }
+    }
+
+    /**
+     * 通过熔断器读取redis，并记录到本地旧值缓存
+     */
+    private String getJson(String key) {
+        String json = redisBreaker.execute(() -> stringRedisTemplate.opsForValue().get(key));
+        if (json != null) {
+            staleCache.put(key, json);
+        }
+        return json;
+    }
+
+    /**
+     * redis不可用时的降级查询：先读本地旧值，没有再限流访问数据库
+     */
+    private <R, ID> R queryDegraded(String key, ID id, Class<R> type, Function<ID, R> dbFallBack) {
+        // 1. 本地旧值
+        String stale = staleCache.get(key);
+        if (stale != null) {
+            return StrUtil.isBlank(stale) ? null : JSONUtil.toBean(stale, type);
+        }
+
+        // 2. 限流访问数据库，防止redis故障时流量全部打到数据库
+        if (!tryAcquireDbPermit()) {
+            throw new RuntimeException("服务繁忙，请稍后再试");
+        }
+        R r = dbFallBack.apply(id);
+        staleCache.put(key, r == null ? "" : JSONUtil.toJsonStr(r));
+        return r;
+    }
+
+    private boolean tryAcquireDbPermit() {
+        long second = System.currentTimeMillis() / 1000;
+        long window = dbPermitWindow.get();
+        if (window != second && dbPermitWindow.compareAndSet(window, second)) {
+            dbPermitsUsed.set(0);
+        }
+        return dbPermitsUsed.incrementAndGet() <= DEGRADED_DB_PERMITS_PER_SECOND;
     }
 }
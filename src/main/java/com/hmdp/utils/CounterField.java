@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 写回数据库的计数器，每个计数器对应一张表的一个计数字段
+ * 增量先累加在redis的hash中，由CounterFlusher定时批量写回
+ */
+public enum CounterField {
+    BLOG_LIKED("tb_blog", "id", "liked", BLOG_LIKE_DELTA_KEY, false),
+    BLOG_COMMENTS("tb_blog", "id", "comments", BLOG_COMMENT_DELTA_KEY, false),
+    SHOP_SOLD("tb_shop", "id", "sold", SHOP_SOLD_DELTA_KEY, false),
+    SHOP_COMMENTS("tb_shop", "id", "comments", SHOP_COMMENT_DELTA_KEY, false),
+    // 用户详情不一定存在，写回时不存在则插入
+    USER_FANS("tb_user_info", "user_id", "fans", USER_FANS_DELTA_KEY, true),
+    USER_FOLLOWEE("tb_user_info", "user_id", "followee", USER_FOLLOWEE_DELTA_KEY, true);
+
+    private final String table;
+    private final String idColumn;
+    private final String column;
+    private final String deltaKey;
+    private final boolean upsert;
+
+    CounterField(String table, String idColumn, String column, String deltaKey, boolean upsert) {
+        this.table = table;
+        this.idColumn = idColumn;
+        this.column = column;
+        this.deltaKey = deltaKey;
+        this.upsert = upsert;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String getIdColumn() {
+        return idColumn;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public String getDeltaKey() {
+        return deltaKey;
+    }
+
+    /**
+     * 正在写回的增量，写回成功后删除
+     */
+    public String getFlushingKey() {
+        return deltaKey + ":flushing";
+    }
+
+    public boolean isUpsert() {
+        return upsert;
+    }
+}
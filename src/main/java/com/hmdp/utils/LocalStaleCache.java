@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 有界的本地旧值缓存，redis不可用时作为降级数据来源
+ * 基于ConcurrentHashMap，每次成功读取redis都会写入，读写都不加全局锁；
+ * 超出容量时淘汰最早写入的key，降级数据不需要严格的LRU
+ */
+public class LocalStaleCache<V> {
+    private final int capacity;
+    private final ConcurrentHashMap<String, V> cache = new ConcurrentHashMap<>();
+    // key的写入顺序，删除后再写入的key会出现多次
+    private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger orderSize = new AtomicInteger();
+
+    public LocalStaleCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public V get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, V value) {
+        if (cache.put(key, value) == null) {
+            order.offer(key);
+            orderSize.incrementAndGet();
+            evict();
+        }
+    }
+
+    public void remove(String key) {
+        cache.remove(key);
+    }
+
+    private void evict() {
+        // 写入顺序中残留的已删除key同样限制数量，不超过容量的2倍
+        while (cache.size() > capacity || orderSize.get() > capacity * 2) {
+            String eldest = order.poll();
+            if (eldest == null) {
+                return;
+            }
+            orderSize.decrementAndGet();
+            cache.remove(eldest);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 营业时间解析
+ * 把"10:00-22:00"、"11:00-13:50,17:00-20:50"、"11:30-03:00"(跨零点)这样的文本解析成一周的时间片位图，
+ * 每30分钟一个时间片，周一00:00为第0片，一周共336片
+ */
+public class OpenHours {
+    public static final int SLOT_MINUTES = 30;
+    public static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    public static final int SLOTS_PER_WEEK = 7 * SLOTS_PER_DAY;
+
+    private static final Pattern RANGE = Pattern.compile("(\\d{1,2})[:：](\\d{2})\\s*[-~—－至到]\\s*(\\d{1,2})[:：](\\d{2})");
+
+    /**
+     * @param text 营业时间文本，不区分星期，每天相同
+     * @return 营业的时间片，无法解析时返回null
+     */
+    public static BitSet parse(String text) {
+        if (StrUtil.isBlank(text)) {
+            return null;
+        }
+        if (text.contains("24小时") || text.contains("全天")) {
+            BitSet all = new BitSet(SLOTS_PER_WEEK);
+            all.set(0, SLOTS_PER_WEEK);
+            return all;
+        }
+        BitSet slots = new BitSet(SLOTS_PER_WEEK);
+        Matcher matcher = RANGE.matcher(text);
+        boolean found = false;
+        while (matcher.find()) {
+            int open = Integer.parseInt(matcher.group(1)) * 60 + Integer.parseInt(matcher.group(2));
+            int close = Integer.parseInt(matcher.group(3)) * 60 + Integer.parseInt(matcher.group(4));
+            if (open > 24 * 60 || close > 24 * 60) {
+                continue;
+            }
+            found = true;
+            // 只算完整营业的时间片，宁可少算也不把已打烊的店铺当成营业中
+            int from = (open + SLOT_MINUTES - 1) / SLOT_MINUTES;
+            int to = close / SLOT_MINUTES;
+            if (close <= open) {
+                // 跨零点，营业到第二天；按分钟判断，同一时间片内的短时段不算跨零点
+                to += SLOTS_PER_DAY;
+            }
+            if (to <= from) {
+                // 不包含完整的时间片
+                continue;
+            }
+            for (int day = 0; day < 7; day++) {
+                for (int slot = from; slot < to; slot++) {
+                    slots.set((day * SLOTS_PER_DAY + slot) % SLOTS_PER_WEEK);
+                }
+            }
+        }
+        return found ? slots : null;
+    }
+
+    /**
+     * 某个时间所在的时间片
+     */
+    public static int slotOf(LocalDateTime time) {
+        int day = time.getDayOfWeek().getValue() - 1;
+        return day * SLOTS_PER_DAY + (time.getHour() * 60 + time.getMinute()) / SLOT_MINUTES;
+    }
+}
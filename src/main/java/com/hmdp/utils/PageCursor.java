@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 游标分页的游标编解码
+ * 游标保存上一页最后一条记录的排序字段，下一页从该位置向后查找(where 排序字段 > 上次的值)，
+ * 不用offset也不需要count查询；对客户端是不透明的字符串，只需原样传回
+ */
+public class PageCursor {
+
+    public static String encode(JSONObject values) {
+        return Base64.encodeUrlSafe(values.toString());
+    }
+
+    /**
+     * @param cursor 客户端传回的游标
+     * @return 游标中的值，空游标(第一页)返回空对象，无法解析时返回null
+     */
+    public static JSONObject decode(String cursor) {
+        if (StrUtil.isBlank(cursor)) {
+            return new JSONObject();
+        }
+        try {
+            return JSONUtil.parseObj(Base64.decodeStr(cursor, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
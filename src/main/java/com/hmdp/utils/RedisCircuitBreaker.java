@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * redis熔断器
+ * 连续失败(异常或慢调用)达到阈值后断开，断开期间的调用直接失败，由调用方降级；
+ * 断开一段时间后放行一个探测请求，成功则恢复，并重放断开期间排队的写操作；重放完成之前新的写操作继续排队
+ */
+@Slf4j
+@Component
+public class RedisCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long slowCallMillis;
+    private final int replayQueueSize;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openedAt = new AtomicLong();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    // 断开期间的写操作和缓存删除，恢复后按顺序重放
+    private final BlockingDeque<Runnable> replayQueue = new LinkedBlockingDeque<>();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    // 正在重放，由replayQueue的锁保护
+    private boolean replaying;
+
+    private static final ExecutorService REPLAY_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "redis-write-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisCircuitBreaker(
+            @Value("${hmdp.redis.breaker.failure-threshold:5}") int failureThreshold,
+            @Value("${hmdp.redis.breaker.open-millis:10000}") long openMillis,
+            @Value("${hmdp.redis.breaker.slow-call-millis:200}") long slowCallMillis,
+            @Value("${hmdp.redis.breaker.replay-queue-size:10000}") int replayQueueSize) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.slowCallMillis = slowCallMillis;
+        this.replayQueueSize = replayQueueSize;
+    }
+
+    /**
+     * 通过熔断器访问redis
+     * @throws RedisUnavailableException 熔断器断开，或本次访问失败
+     */
+    public <T> T execute(Supplier<T> action) {
+        if (!allowRequest()) {
+            throw new RedisUnavailableException("redis熔断中");
+        }
+        // 非关闭状态下放行的是探测请求
+        boolean probe = state.get() != State.CLOSED;
+        long begin = System.currentTimeMillis();
+        T result;
+        try {
+            result = action.get();
+        } catch (DataAccessException e) {
+            onFailure();
+            throw new RedisUnavailableException(e);
+        } catch (RuntimeException e) {
+            // 非redis访问异常(如序列化失败)，说明redis本身可用
+            onSuccess();
+            throw e;
+        } finally {
+            // 探测请求无论结果如何(包括Error)都要释放，否则半开状态不会再放行探测
+            if (probe) {
+                probing.set(false);
+            }
+        }
+        // 慢调用同样视为失败，但结果仍然可用
+        if (System.currentTimeMillis() - begin > slowCallMillis) {
+            onFailure();
+        } else {
+            onSuccess();
+        }
+        return result;
+    }
+
+    /**
+     * 批量访问redis(如重建时的大pipeline)：耗时取决于批量大小，只有异常计为失败，不计慢调用
+     * @throws RedisUnavailableException 熔断器断开，或本次访问失败
+     */
+    public <T> T executeBatch(Supplier<T> action) {
+        if (!allowRequest()) {
+            throw new RedisUnavailableException("redis熔断中");
+        }
+        boolean probe = state.get() != State.CLOSED;
+        T result;
+        try {
+            result = action.get();
+        } catch (DataAccessException e) {
+            onFailure();
+            throw new RedisUnavailableException(e);
+        } catch (RuntimeException e) {
+            onSuccess();
+            throw e;
+        } finally {
+            if (probe) {
+                probing.set(false);
+            }
+        }
+        onSuccess();
+        return result;
+    }
+
+    public void run(Runnable action) {
+        execute(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * 写操作：redis不可用时加入重放队列，恢复后再执行
+     * 重放队列排空之前新的写操作同样排队，保证按发生的顺序执行，旧的写入不会覆盖之后的删除
+     */
+    public void executeOrQueue(Runnable action) {
+        synchronized (replayQueue) {
+            if (replaying) {
+                enqueue(action);
+                return;
+            }
+        }
+        try {
+            run(action);
+        } catch (RedisUnavailableException e) {
+            synchronized (replayQueue) {
+                enqueue(action);
+            }
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public int pendingReplays() {
+        return replayQueue.size();
+    }
+
+    public long droppedWrites() {
+        return droppedWrites.get();
+    }
+
+    private boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.currentTimeMillis() - openedAt.get() >= openMillis) {
+            state.compareAndSet(State.OPEN, State.HALF_OPEN);
+        }
+        // 半开状态同一时间只放行一个探测请求
+        return state.get() == State.HALF_OPEN && probing.compareAndSet(false, true);
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.get() == State.HALF_OPEN && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            probing.set(false);
+            synchronized (replayQueue) {
+                if (replayQueue.isEmpty() || replaying) {
+                    return;
+                }
+                replaying = true;
+            }
+            log.info("redis恢复，熔断器关闭，待重放写操作：{}", replayQueue.size());
+            REPLAY_EXECUTOR.submit(this::replay);
+        }
+    }
+
+    private void onFailure() {
+        if (state.get() == State.HALF_OPEN) {
+            // 探测失败，重新断开
+            open();
+            probing.set(false);
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+            openedAt.set(System.currentTimeMillis());
+            log.warn("redis连续失败{}次，熔断器断开", failureThreshold);
+        }
+    }
+
+    private void open() {
+        openedAt.set(System.currentTimeMillis());
+        state.set(State.OPEN);
+    }
+
+    private void enqueue(Runnable action) {
+        // 队列满时丢弃最旧的写操作，缓存最终由ttl兜底
+        while (replayQueue.size() >= replayQueueSize && replayQueue.pollFirst() != null) {
+            droppedWrites.incrementAndGet();
+        }
+        replayQueue.offerLast(action);
+    }
+
+    private void replay() {
+        while (true) {
+            Runnable action;
+            synchronized (replayQueue) {
+                action = replayQueue.pollFirst();
+                if (action == null) {
+                    // 排空后新的写操作才直接执行
+                    replaying = false;
+                    return;
+                }
+            }
+            try {
+                run(action);
+            } catch (RedisUnavailableException e) {
+                // 再次失败，放回队首稍后重试，期间新的写操作继续排在后面
+                synchronized (replayQueue) {
+                    replayQueue.offerFirst(action);
+                }
+                try {
+                    Thread.sleep(Math.min(openMillis, 1000));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } catch (RuntimeException e) {
+                log.warn("重放写操作失败，已跳过", e);
+            }
+        }
+    }
+
+    /**
+     * redis不可用，调用方应当降级
+     */
+    public static class RedisUnavailableException extends RuntimeException {
+        public RedisUnavailableException(String message) {
+            super(message);
+        }
+
+        public RedisUnavailableException(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -11,13 +11,110 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shopType:";
+    // 紧凑存储：按id区间把店铺打包进同一个hash，field为id，value为"过期时间戳|json"
+    public static final String CACHE_SHOP_BUCKET_KEY = "cache:shop:bucket:";
+    // 每个桶的field数，需小于redis的hash-max-listpack-entries(默认128)，才能保持listpack编码
+    public static final Long CACHE_BUCKET_SIZE = 100L;
+    // 按类型分页的店铺id列表，key中带有类型的版本号，新增/修改店铺时版本号自增，旧的分页缓存全部失效
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop:type:version:";
+    public static final String CACHE_SHOP_TYPE_PAGE_KEY = "cache:shop:type:page:";
+    public static final Long CACHE_SHOP_TYPE_PAGE_TTL = 10L;
+    // 店铺详情页的各部分分别缓存：优惠券含秒杀库存，过期时间较短
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop:voucher:";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 1L;
+    public static final String CACHE_SHOP_BLOG_KEY = "cache:shop:blog:";
+    public static final Long CACHE_SHOP_BLOG_TTL = 5L;
+    // 用户摘要(昵称、头像)，列表中批量解析用户时使用
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    // 各计数器待写回数据库的增量(id -> 增量)，见CounterField；写回时整体改名为 增量key + ":flushing" 再读取
+    public static final String BLOG_LIKE_DELTA_KEY = "blog:like:delta";
+    public static final String BLOG_COMMENT_DELTA_KEY = "blog:comment:delta";
+    public static final String SHOP_SOLD_DELTA_KEY = "shop:sold:delta";
+    public static final String SHOP_COMMENT_DELTA_KEY = "shop:comment:delta";
+    public static final String USER_FANS_DELTA_KEY = "user:fans:delta";
+    public static final String USER_FOLLOWEE_DELTA_KEY = "user:followee:delta";
+    public static final String LOCK_COUNTER_FLUSH_NAME = "counter:flush";
+    public static final Long LOCK_COUNTER_FLUSH_TTL = 1L;
+    // 博文热度排行榜及其基准时间，基准时间不存在表示排行榜尚未建立
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_EPOCH_KEY = "blog:hot:epoch";
+    public static final String BLOG_HOT_SHADOW_KEY = "blog:hot:shadow";
+    public static final String LOCK_BLOG_HOT_REBUILD_KEY = "lock:blog:hot:rebuild";
+    public static final Long LOCK_BLOG_HOT_REBUILD_TTL = 10L;
+    // 用户关注的人，tb_follow的镜像，不存在时从数据库重建；没有关注任何人时只有占位成员
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String FOLLOWS_PLACEHOLDER = "-";
+    public static final Long FOLLOWS_TTL = 7L;
+    // 关注集合的版本号，每次关注或取关时递增，重建期间版本号变化则放弃写入
+    public static final String FOLLOWS_VERSION_KEY = "follows:version:";
+    public static final int FOLLOWS_LOAD_ATTEMPTS = 3;
     public static final String FEED_KEY = "feed:";
+    // 作者的发件箱，以及粉丝数超过推送阈值、只写发件箱的作者
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big";
+    // 推送任务队列，以及每个任务已推送到的粉丝id
+    public static final String FEED_FANOUT_STREAM_KEY = "feed:fanout";
+    public static final String FEED_FANOUT_CHECKPOINT_KEY = "feed:fanout:checkpoint";
+    // 超过最多投递次数的推送任务
+    public static final String FEED_FANOUT_DEAD_KEY = "feed:fanout:dead";
+    // 没有tb_user_info记录的作者的粉丝数，推送前判断是否为大V，单位分钟
+    public static final String FEED_FANS_COUNT_KEY = "feed:fans:";
+    public static final Long FEED_FANS_COUNT_TTL = 10L;
+    // 每个收件箱和发件箱保留的博文数量
+    public static final int FEED_MAX_SIZE = 1000;
+    // 店铺变更广播的频道，各节点收到后更新进程内店铺索引
+    public static final String SHOP_CHANGED_CHANNEL = "shop:changed";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    // 没有店铺的类型的GEO空标记
+    public static final String SHOP_GEO_EMPTY_KEY = "shop:geo:empty:";
+    // 加载GEO数据的锁名(SimpleRedisLock，key为lock:{锁名})，租期覆盖整个加载过程，单位分钟
+    public static final String LOCK_SHOP_GEO_NAME = "shop:geo:";
+    public static final String LOCK_SHOP_GEO_REBUILD_NAME = "shop:geo:rebuild";
+    public static final Long LOCK_SHOP_GEO_TTL = 30L;
+    // 附近商铺的搜索半径，单位米
+    public static final Double SHOP_GEO_RADIUS = 5000D;
+    // 加载GEO数据时每批查询的店铺数量，以及每条GEOADD最多的成员数
+    public static final int SHOP_GEO_LOAD_BATCH = 5000;
+    public static final int SHOP_GEO_ADD_BATCH = 500;
+    // 重建GEO数据时写入的影子key：shop:geo:shadow:{typeId}:{重建id}，每次重建各自一个，写完后RENAME覆盖正式key
+    public static final String SHOP_GEO_SHADOW_KEY = "shop:geo:shadow:";
+    public static final Long SHOP_GEO_SHADOW_TTL = 30L;
+    // 某个类型正在重建的影子key集合，店铺变更同时写入其中的影子key
+    public static final String SHOP_GEO_BUILDING_KEY = "shop:geo:building:";
+    // 店铺排行榜：shop:rank:{字段}:{typeId}
+    public static final String SHOP_RANK_KEY = "shop:rank:";
+    // 重建排行榜时写入的影子key，每次重建各自一个，写完后RENAME覆盖正式key
+    public static final String SHOP_RANK_SHADOW_KEY = "shop:rank:shadow:";
+    public static final Long SHOP_RANK_SHADOW_TTL = 30L;
+    // 某个类型的排行榜已加载的标记，没有店铺或某个字段全为空的类型同样标记为已加载
+    public static final String SHOP_RANK_LOADED_KEY = "shop:rank:loaded:";
+    // 某个类型正在进行的重建id，店铺变更同时写入这些重建的影子key
+    public static final String SHOP_RANK_BUILDING_KEY = "shop:rank:building:";
+    // 某个类型现有的排行榜(key后缀)，重建后不再有店铺的商圈排行榜据此删除
+    public static final String SHOP_RANK_KEYS_KEY = "shop:rank:keys:";
+    // 加载排行榜时每批查询的店铺数量
+    public static final int SHOP_RANK_LOAD_BATCH = 5000;
+    // 加载排行榜的锁名(SimpleRedisLock，key为lock:{锁名})，租期覆盖整个加载过程，单位分钟
+    public static final String LOCK_SHOP_RANK_NAME = "shop:rank:";
+    public static final String LOCK_SHOP_RANK_REBUILD_NAME = "shop:rank:rebuild";
+    public static final Long LOCK_SHOP_RANK_TTL = 30L;
     public static final String USER_SIGN_KEY = "sign:";
+    // 独立访客：uv:{shop|blog}:{id}:{日yyyyMMdd | 周yyyyWww | 月yyyyMM}，每个都是HyperLogLog
+    public static final String UV_KEY = "uv:";
+    public static final Long UV_DAY_TTL = 62L;
+    public static final Long UV_WEEK_TTL = 370L;
+    public static final Long UV_MONTH_TTL = 1100L;
+    // 每天有访问的对象id，合并周、月数据时使用
+    public static final String UV_IDS_KEY = "uv:ids:";
+    // 周、月数据已合并的标记
+    public static final String UV_ROLLUP_KEY = "uv:rollup:";
+    public static final String LOCK_UV_ROLLUP_NAME = "uv:rollup";
+    public static final Long LOCK_UV_ROLLUP_TTL = 30L;
 }
@@ -3,6 +3,7 @@ package com.hmdp.utils;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
@@ -17,9 +18,13 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
     private StringRedisTemplate stringRedisTemplate;
+    private RedisCircuitBreaker redisBreaker;
+    // 最近校验过的token，redis不可用时用来识别已登录用户
+    private final LocalStaleCache<UserDTO> tokenCache = new LocalStaleCache<>(10000);
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, RedisCircuitBreaker redisBreaker) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisBreaker = redisBreaker;
     }
 
     @Override
@@ -33,10 +38,21 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 2.根据token从redis中查询用户
         String key = LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+        Map<Object, Object> userMap;
+        try {
+            userMap = redisBreaker.execute(() -> stringRedisTemplate.opsForHash().entries(key));
+        } catch (RedisUnavailableException e) {
+            // redis不可用，使用本地缓存的用户信息，不阻塞请求
+            UserDTO staleUser = tokenCache.get(key);
+            if (staleUser != null) {
+                UserHolder.saveUser(staleUser);
+            }
+            return true;
+        }
 
         // 3.判断用户是否存在
         if(userMap.isEmpty()){
+            tokenCache.remove(key);
             response.setStatus(401);
             return true;
         }
@@ -46,9 +62,13 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 5.保存数据到tl
         UserHolder.saveUser(userDTO);
+        tokenCache.put(key, userDTO);
 
-        // 6.刷新token有效期
-        stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        // 6.刷新token有效期，失败时不重放，下次请求会再次刷新
+        try {
+            redisBreaker.execute(() -> stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES));
+        } catch (RedisUnavailableException ignored) {
+        }
 
         // 7.放行
         return true;
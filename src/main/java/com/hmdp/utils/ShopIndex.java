@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+import java.util.List;
+
+/**
+ * 进程内的店铺索引，启动时从tb_shop分批构建，之后随店铺的新增和修改增量更新
+ * 只包含本节点负责的分区(见ShopPartitioner)的店铺
+ */
+public interface ShopIndex {
+    /**
+     * 本节点是否需要这个索引，不需要时不加载也不更新
+     */
+    default boolean enabled() {
+        return true;
+    }
+
+    /**
+     * 启动时分批加载店铺
+     * @param shops 按id升序的一批店铺
+     */
+    void load(List<Shop> shops);
+
+    /**
+     * 全部店铺加载完成
+     */
+    void loadFinished();
+
+    /**
+     * 店铺新增或修改
+     * @param old 修改前的店铺，新增时为null
+     * @param current 新增或修改后的店铺
+     */
+    void onShopChanged(Shop old, Shop current);
+
+    /**
+     * 店铺移到了本节点不负责的分区
+     * @param shop 移出前的店铺
+     */
+    void onShopRemoved(Shop shop);
+}
@@ -0,0 +1,397 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 店铺名称的n-gram倒排索引，替代like '%name%'的全表扫描
+ * 名称按单字和相邻两字切分(中文没有空格分词，二元组即可覆盖任意子串)，
+ * 每个词项的倒排表是升序的店铺id，按差值+变长整数压缩存储；
+ * 查询时从最短的倒排表开始求交集，再用原名称校验子串并排序
+ * 索引按商圈分区，指定商圈的查询只访问一个分区，查询耗时不随城市和商圈的增加而增长
+ */
+@Slf4j
+@Component
+public class ShopNameIndex implements ShopIndex {
+
+    // 分区 -> 该分区的倒排索引
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+
+    // 加载完成前收到的店铺变更，加载完成后重放
+    private final List<Runnable> pending = new ArrayList<>();
+    private volatile boolean ready;
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void load(List<Shop> shops) {
+        for (Shop shop : shops) {
+            String name = normalize(shop.getName());
+            if (!name.isEmpty()) {
+                partition(ShopPartitioner.partitionOf(shop)).load(shop.getId(), name);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void loadFinished() {
+        long bytes = 0;
+        int shops = 0;
+        for (Partition partition : partitions.values()) {
+            bytes += partition.loadFinished();
+            shops += partition.names.size();
+        }
+        ready = true;
+        pending.forEach(Runnable::run);
+        pending.clear();
+        log.info("店铺名称索引加载完成，分区数：{}，店铺数：{}，倒排表大小：{}KB", partitions.size(), shops, bytes / 1024);
+    }
+
+    @Override
+    public synchronized void onShopChanged(Shop old, Shop current) {
+        Runnable update = () -> {
+            String partition = ShopPartitioner.partitionOf(current);
+            if (old != null && !ShopPartitioner.partitionOf(old).equals(partition)) {
+                // 换了商圈，从原分区删除
+                partition(ShopPartitioner.partitionOf(old)).update(old.getId(), "");
+            }
+            partition(partition).update(current.getId(), current.getName());
+        };
+        if (ready) {
+            update.run();
+        } else {
+            pending.add(update);
+        }
+    }
+
+    @Override
+    public synchronized void onShopRemoved(Shop shop) {
+        Runnable remove = () -> partition(ShopPartitioner.partitionOf(shop)).update(shop.getId(), "");
+        if (ready) {
+            remove.run();
+        } else {
+            pending.add(remove);
+        }
+    }
+
+    /**
+     * 按名称关键字查询，名称以关键字开头的优先，其次名称越短越靠前
+     * @param keyword 关键字
+     * @param partition 分区，为null时查询所有分区
+     * @param from 跳过的数量
+     * @param size 返回的数量
+     * @return 店铺id
+     */
+    public List<Long> search(String keyword, String partition, int from, int size) {
+        String q = normalize(keyword);
+        if (q.isEmpty() || size <= 0) {
+            return Collections.emptyList();
+        }
+        Set<String> grams = queryGrams(q);
+
+        // 1. 在每个分区中求交集并校验，所有分区共用一个大顶堆保留排名前from+size的
+        int limit = from + size;
+        PriorityQueue<Match> heap = new PriorityQueue<>(limit, MATCH_ORDER.reversed());
+        if (partition != null) {
+            Partition p = partitions.get(partition);
+            if (p != null) {
+                p.collect(q, grams, limit, heap);
+            }
+        } else {
+            partitions.values().forEach(p -> p.collect(q, grams, limit, heap));
+        }
+
+        // 2. 排序后截取当前页
+        List<Match> matches = new ArrayList<>(heap);
+        matches.sort(MATCH_ORDER);
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < matches.size(); i++) {
+            ids.add(matches.get(i).id);
+        }
+        return ids;
+    }
+
+    private Partition partition(String partition) {
+        return partitions.computeIfAbsent(partition, k -> new Partition());
+    }
+
+    private static final Comparator<Match> MATCH_ORDER = Comparator.<Match>comparingInt(m -> m.prefix ? 0 : 1)
+            .thenComparingInt(m -> m.length)
+            .thenComparingLong(m -> m.id);
+
+    /**
+     * 一个分区的倒排索引
+     */
+    private static class Partition {
+        // 词项 -> 压缩倒排表，倒排表不可变，更新时整体替换，查询无需加锁
+        private final Map<String, PostingList> postings = new ConcurrentHashMap<>();
+        // 店铺id -> 规范化后的名称
+        private final Map<Long, String> names = new ConcurrentHashMap<>();
+        // 启动加载期间的倒排表，店铺按id升序加载，直接追加即可
+        private Map<String, LongList> building = new HashMap<>();
+
+        void load(long id, String name) {
+            names.put(id, name);
+            for (String gram : indexGrams(name)) {
+                building.computeIfAbsent(gram, k -> new LongList()).add(id);
+            }
+        }
+
+        /**
+         * @return 倒排表占用的字节数
+         */
+        long loadFinished() {
+            long bytes = 0;
+            if (building != null) {
+                for (Map.Entry<String, LongList> entry : building.entrySet()) {
+                    PostingList list = PostingList.encode(entry.getValue().toArray());
+                    postings.put(entry.getKey(), list);
+                    bytes += list.data.length;
+                }
+                building = null;
+            }
+            return bytes;
+        }
+
+        void collect(String q, Set<String> grams, int limit, PriorityQueue<Match> heap) {
+            // 1. 取出所有词项的倒排表，任何一个不存在则没有结果
+            List<PostingList> lists = new ArrayList<>();
+            for (String gram : grams) {
+                PostingList list = postings.get(gram);
+                if (list == null) {
+                    return;
+                }
+                lists.add(list);
+            }
+
+            // 2. 从最短的倒排表开始求交集
+            lists.sort(Comparator.comparingInt(list -> list.size));
+            long[] candidates = lists.get(0).decode();
+            for (int i = 1; i < lists.size() && candidates.length > 0; i++) {
+                candidates = lists.get(i).intersect(candidates);
+            }
+
+            // 3. 校验名称确实包含关键字(二元组都出现不代表连续出现)
+            for (long id : candidates) {
+                String name = names.get(id);
+                if (name == null || !name.contains(q)) {
+                    continue;
+                }
+                Match match = new Match(id, name.startsWith(q), name.length());
+                if (heap.size() < limit) {
+                    heap.offer(match);
+                } else if (MATCH_ORDER.compare(match, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.offer(match);
+                }
+            }
+        }
+
+        /**
+         * 店铺名称变化时，只更新新旧名称中不同的词项
+         * @param rawName 新名称，为空字符串时从分区中删除
+         */
+        void update(Long id, String rawName) {
+            if (rawName == null) {
+                return;
+            }
+            String name = normalize(rawName);
+            String old = name.isEmpty() ? names.remove(id) : names.put(id, name);
+            if (name.equals(old)) {
+                return;
+            }
+            Set<String> oldGrams = old == null ? Collections.emptySet() : indexGrams(old);
+            Set<String> newGrams = name.isEmpty() ? Collections.emptySet() : indexGrams(name);
+            for (String gram : oldGrams) {
+                if (!newGrams.contains(gram)) {
+                    postings.computeIfPresent(gram, (k, list) -> list.without(id));
+                }
+            }
+            for (String gram : newGrams) {
+                if (!oldGrams.contains(gram)) {
+                    postings.compute(gram, (k, list) -> list == null ? PostingList.encode(new long[]{id}) : list.with(id));
+                }
+            }
+        }
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : StrUtil.cleanBlank(name).toLowerCase();
+    }
+
+    /**
+     * 建索引的词项：所有单字和相邻两字
+     */
+    private static Set<String> indexGrams(String name) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i < name.length(); i++) {
+            grams.add(name.substring(i, i + 1));
+            if (i + 1 < name.length()) {
+                grams.add(name.substring(i, i + 2));
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * 查询的词项：单字查询用单字，否则用所有相邻两字
+     */
+    private static Set<String> queryGrams(String q) {
+        if (q.length() == 1) {
+            return Collections.singleton(q);
+        }
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + 1 < q.length(); i++) {
+            grams.add(q.substring(i, i + 2));
+        }
+        return grams;
+    }
+
+    private static class Match {
+        private final long id;
+        private final boolean prefix;
+        private final int length;
+
+        Match(long id, boolean prefix, int length) {
+            this.id = id;
+            this.prefix = prefix;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 压缩倒排表：升序id的差值，每个差值用变长整数编码(每字节7位，最高位表示后面还有字节)
+     * 相邻店铺id的差值通常很小，大多只占1个字节
+     */
+    private static final class PostingList {
+        private final byte[] data;
+        private final int size;
+
+        private PostingList(byte[] data, int size) {
+            this.data = data;
+            this.size = size;
+        }
+
+        static PostingList encode(long[] ids) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(ids.length + 8);
+            long prev = 0;
+            for (long id : ids) {
+                long delta = id - prev;
+                while ((delta & ~0x7FL) != 0) {
+                    out.write((int) ((delta & 0x7F) | 0x80));
+                    delta >>>= 7;
+                }
+                out.write((int) delta);
+                prev = id;
+            }
+            return new PostingList(out.toByteArray(), ids.length);
+        }
+
+        long[] decode() {
+            long[] ids = new long[size];
+            int pos = 0;
+            long prev = 0;
+            for (int i = 0; i < size; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                prev += delta;
+                ids[i] = prev;
+            }
+            return ids;
+        }
+
+        /**
+         * 与升序数组求交集，边解码边比较
+         */
+        long[] intersect(long[] sorted) {
+            LongList result = new LongList();
+            int pos = 0;
+            int j = 0;
+            long prev = 0;
+            for (int i = 0; i < size && j < sorted.length; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                prev += delta;
+                while (j < sorted.length && sorted[j] < prev) {
+                    j++;
+                }
+                if (j < sorted.length && sorted[j] == prev) {
+                    result.add(prev);
+                    j++;
+                }
+            }
+            return result.toArray();
+        }
+
+        PostingList with(long id) {
+            long[] ids = decode();
+            int i = Arrays.binarySearch(ids, id);
+            if (i >= 0) {
+                return this;
+            }
+            int at = -i - 1;
+            long[] updated = new long[ids.length + 1];
+            System.arraycopy(ids, 0, updated, 0, at);
+            updated[at] = id;
+            System.arraycopy(ids, at, updated, at + 1, ids.length - at);
+            return encode(updated);
+        }
+
+        /**
+         * @return 删除后的倒排表，为空时返回null，对应的词项随之删除
+         */
+        PostingList without(long id) {
+            long[] ids = decode();
+            int i = Arrays.binarySearch(ids, id);
+            if (i < 0) {
+                return this;
+            }
+            if (ids.length == 1) {
+                return null;
+            }
+            long[] updated = new long[ids.length - 1];
+            System.arraycopy(ids, 0, updated, 0, i);
+            System.arraycopy(ids, i + 1, updated, i, ids.length - i - 1);
+            return encode(updated);
+        }
+    }
+
+    /**
+     * 可增长的long数组，避免装箱
+     */
+    private static final class LongList {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * 店铺营业时间索引
+ * 营业时间在加载和写入时解析一次，按typeId分区，每个分区给店铺分配连续的序号，
+ * 每个时间片一个位图，第i位表示序号为i的店铺在该时间片营业；查询"正在营业"只需取出当前时间片的位图
+ */
+@Slf4j
+@Component
+public class ShopOpenHoursIndex implements ShopIndex {
+
+    private final Map<Long, TypeSlots> types = new ConcurrentHashMap<>();
+    // 加载完成前收到的店铺变更，加载完成后重放，避免被加载中读到的旧营业时间覆盖
+    private final List<Runnable> pending = new ArrayList<>();
+    private volatile boolean ready;
+
+    @Resource
+    private ShopPartitioner partitioner;
+
+    /**
+     * 营业时间索引只用于附近商铺查询，只有负责所有分区的节点才会查询
+     */
+    @Override
+    public boolean enabled() {
+        return partitioner.servesAll();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void load(List<Shop> shops) {
+        shops.forEach(this::put);
+    }
+
+    @Override
+    public synchronized void loadFinished() {
+        pending.forEach(Runnable::run);
+        pending.clear();
+        ready = true;
+        log.info("店铺营业时间索引加载完成，类型数：{}", types.size());
+    }
+
+    @Override
+    public synchronized void onShopChanged(Shop old, Shop current) {
+        Runnable update = () -> {
+            if (old != null && old.getTypeId() != null && !old.getTypeId().equals(current.getTypeId())) {
+                TypeSlots slots = types.get(old.getTypeId());
+                if (slots != null) {
+                    slots.put(old.getId(), null);
+                }
+            }
+            put(current);
+        };
+        if (ready) {
+            update.run();
+        } else {
+            pending.add(update);
+        }
+    }
+
+    @Override
+    public synchronized void onShopRemoved(Shop shop) {
+        Runnable remove = () -> {
+            TypeSlots slots = shop.getTypeId() == null ? null : types.get(shop.getTypeId());
+            if (slots != null) {
+                slots.put(shop.getId(), null);
+            }
+        };
+        if (ready) {
+            remove.run();
+        } else {
+            pending.add(remove);
+        }
+    }
+
+    /**
+     * 某个类型在某个时间片营业的店铺
+     * @param slot 时间片，见OpenHours.slotOf
+     * @return 判断店铺id是否营业，基于调用时的快照
+     */
+    public LongPredicate openAt(Long typeId, int slot) {
+        TypeSlots slots = types.get(typeId);
+        if (slots == null) {
+            return id -> false;
+        }
+        return slots.snapshot(slot);
+    }
+
+    private void put(Shop shop) {
+        if (shop.getId() == null || shop.getTypeId() == null) {
+            return;
+        }
+        BitSet hours = OpenHours.parse(shop.getOpenHours());
+        if (hours == null && shop.getOpenHours() != null) {
+            log.debug("无法解析的营业时间，shopId：{}，openHours：{}", shop.getId(), shop.getOpenHours());
+        }
+        types.computeIfAbsent(shop.getTypeId(), k -> new TypeSlots()).put(shop.getId(), hours);
+    }
+
+    /**
+     * 一个类型的时间片位图
+     */
+    private static class TypeSlots {
+        // 序号分配后不再变化，查询时无需加锁
+        private final Map<Long, Integer> ordinals = new ConcurrentHashMap<>();
+        private final BitSet[] slots = new BitSet[OpenHours.SLOTS_PER_WEEK];
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        TypeSlots() {
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new BitSet();
+            }
+        }
+
+        /**
+         * @param hours 营业的时间片，为null时视为不营业(无法解析或已移出该类型)
+         */
+        void put(long id, BitSet hours) {
+            lock.writeLock().lock();
+            try {
+                Integer ordinal = ordinals.get(id);
+                if (ordinal == null) {
+                    if (hours == null) {
+                        return;
+                    }
+                    ordinal = ordinals.size();
+                    ordinals.put(id, ordinal);
+                }
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i].set(ordinal, hours != null && hours.get(i));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        LongPredicate snapshot(int slot) {
+            lock.readLock().lock();
+            try {
+                BitSet open = (BitSet) slots[slot].clone();
+                return id -> {
+                    Integer ordinal = ordinals.get(id);
+                    return ordinal != null && open.get(ordinal);
+                };
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
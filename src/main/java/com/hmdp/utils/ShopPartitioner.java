@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 店铺分区：按商圈(Shop.area)划分，没有商圈的店铺归入默认分区
+ * 每个节点可以只负责部分分区，进程内索引只加载这些分区的店铺；查询的分区不由本节点负责时走redis和数据库
+ */
+@Component
+public class ShopPartitioner {
+    public static final String DEFAULT_PARTITION = "default";
+
+    private final Set<String> served;
+
+    public ShopPartitioner(@Value("${hmdp.shop.partition.served:}") String served) {
+        this.served = StrUtil.isBlank(served) ? Collections.emptySet()
+                : Arrays.stream(served.split(",")).map(String::trim).filter(StrUtil::isNotEmpty).collect(Collectors.toSet());
+    }
+
+    public static String partitionOf(Shop shop) {
+        return partitionOf(shop.getArea());
+    }
+
+    public static String partitionOf(String area) {
+        return StrUtil.isBlank(area) ? DEFAULT_PARTITION : area.trim();
+    }
+
+    /**
+     * 是否负责所有分区，只有这时进程内索引才是完整的
+     */
+    public boolean servesAll() {
+        return served.isEmpty();
+    }
+
+    public boolean serves(String partition) {
+        return served.isEmpty() || served.contains(partition);
+    }
+
+    public boolean serves(Shop shop) {
+        return serves(partitionOf(shop));
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.SHOP_RANK_KEY;
+
+/**
+ * 店铺排行榜的排序字段，每个字段每个类型一个ZSET
+ */
+public enum ShopRankField {
+    SCORE("score", Shop::getScore),
+    SOLD("sold", Shop::getSold),
+    COMMENTS("comments", Shop::getComments);
+
+    private final String column;
+    private final Function<Shop, Integer> getter;
+
+    ShopRankField(String column, Function<Shop, Integer> getter) {
+        this.column = column;
+        this.getter = getter;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * 店铺在该字段上的值，为null时不进入排行榜
+     */
+    public Integer valueOf(Shop shop) {
+        return getter.apply(shop);
+    }
+
+    /**
+     * 排行榜key去掉前缀后的部分：{字段}:{typeId}，正式key和影子key共用
+     */
+    public String suffix(Long typeId) {
+        return column + ":" + typeId;
+    }
+
+    public String suffix(Long typeId, String partition) {
+        return suffix(typeId) + ":" + partition;
+    }
+
+    public String key(Long typeId) {
+        return SHOP_RANK_KEY + suffix(typeId);
+    }
+
+    /**
+     * 某个商圈的排行榜：shop:rank:{字段}:{typeId}:{分区}
+     */
+    public String key(Long typeId, String partition) {
+        return SHOP_RANK_KEY + suffix(typeId, partition);
+    }
+
+    /**
+     * @param column 字段名，例如score
+     * @return 对应的排序字段，不支持时返回null
+     */
+    public static ShopRankField of(String column) {
+        for (ShopRankField field : values()) {
+            if (field.column.equals(column)) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,271 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+
+/**
+ * 进程内的店铺空间索引，按typeId分区，每个分区把坐标划分到固定大小的经纬度网格中
+ * 半径查询只扫描圆的外接矩形覆盖的网格，结果按距离升序
+ */
+@Slf4j
+@Component
+public class ShopSpatialIndex implements ShopIndex {
+    // 网格边长(度)，纬度方向约1.1公里
+    private static final double CELL_DEGREES = 0.01;
+    private static final double EARTH_RADIUS = 6371000;
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS / 180;
+
+    private final Map<Long, TypeGrid> grids = new ConcurrentHashMap<>();
+    // 加载完成前收到的店铺变更，加载完成后重放，避免被加载中读到的旧坐标覆盖
+    private final List<Runnable> pending = new ArrayList<>();
+    private volatile boolean ready;
+
+    @Resource
+    private ShopPartitioner partitioner;
+
+    /**
+     * 空间索引只用于附近商铺查询，只有负责所有分区的节点才会查询
+     */
+    @Override
+    public boolean enabled() {
+        return partitioner.servesAll();
+    }
+
+    /**
+     * 是否已完成启动加载，加载完成前查询结果不完整
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void load(List<Shop> shops) {
+        shops.forEach(this::put);
+    }
+
+    @Override
+    public synchronized void loadFinished() {
+        pending.forEach(Runnable::run);
+        pending.clear();
+        ready = true;
+        int total = grids.values().stream().mapToInt(TypeGrid::size).sum();
+        log.info("店铺空间索引加载完成，类型数：{}，店铺数：{}", grids.size(), total);
+    }
+
+    @Override
+    public synchronized void onShopChanged(Shop old, Shop current) {
+        Runnable update = () -> {
+            if (old != null && old.getTypeId() != null && !old.getTypeId().equals(current.getTypeId())) {
+                TypeGrid grid = grids.get(old.getTypeId());
+                if (grid != null) {
+                    grid.remove(old.getId());
+                }
+            }
+            put(current);
+        };
+        if (ready) {
+            update.run();
+        } else {
+            pending.add(update);
+        }
+    }
+
+    @Override
+    public synchronized void onShopRemoved(Shop shop) {
+        Runnable remove = () -> {
+            TypeGrid grid = shop.getTypeId() == null ? null : grids.get(shop.getTypeId());
+            if (grid != null) {
+                grid.remove(shop.getId());
+            }
+        };
+        if (ready) {
+            remove.run();
+        } else {
+            pending.add(remove);
+        }
+    }
+
+    /**
+     * 半径查询
+     * @param x 经度
+     * @param y 纬度
+     * @param radiusMeters 半径，单位米
+     * @param limit 最多返回的数量
+     * @return 按距离升序的店铺
+     */
+    public List<Neighbor> radius(Long typeId, double x, double y, double radiusMeters, int limit) {
+        return radius(typeId, x, y, radiusMeters, limit, id -> true);
+    }
+
+    /**
+     * 带过滤条件的半径查询，过滤在排序之前，limit不会被过滤掉的店铺占用
+     * @param filter 店铺id是否保留，例如是否正在营业
+     */
+    public List<Neighbor> radius(Long typeId, double x, double y, double radiusMeters, int limit, LongPredicate filter) {
+        TypeGrid grid = grids.get(typeId);
+        if (grid == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // 1. 圆的外接矩形覆盖的网格范围
+        double latSpan = radiusMeters / METERS_PER_DEGREE;
+        double lonSpan = radiusMeters / (METERS_PER_DEGREE * cosLat(y));
+        int minCx = cell(x - lonSpan), maxCx = cell(x + lonSpan);
+        int minCy = cell(y - latSpan), maxCy = cell(y + latSpan);
+
+        // 2. 逐个网格计算距离，用大顶堆保留最近的limit个
+        PriorityQueue<Neighbor> heap = new PriorityQueue<>(limit, Comparator.comparingDouble(Neighbor::getDistance).reversed());
+        grid.lock.readLock().lock();
+        try {
+            for (int cx = minCx; cx <= maxCx; cx++) {
+                for (int cy = minCy; cy <= maxCy; cy++) {
+                    collect(grid, cx, cy, x, y, radiusMeters, limit, filter, heap);
+                }
+            }
+        } finally {
+            grid.lock.readLock().unlock();
+        }
+        return sorted(heap);
+    }
+
+    private void put(Shop shop) {
+        if (shop.getId() == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        grids.computeIfAbsent(shop.getTypeId(), k -> new TypeGrid()).put(shop.getId(), shop.getX(), shop.getY());
+    }
+
+    private void collect(TypeGrid grid, int cx, int cy, double x, double y, double radiusMeters,
+                         int limit, LongPredicate filter, PriorityQueue<Neighbor> heap) {
+        List<ShopPoint> points = grid.cells.get(cellKey(cx, cy));
+        if (points == null) {
+            return;
+        }
+        for (ShopPoint point : points) {
+            double distance = distance(x, y, point.x, point.y);
+            if (distance > radiusMeters || !filter.test(point.id)) {
+                continue;
+            }
+            if (heap.size() < limit) {
+                heap.offer(new Neighbor(point.id, distance));
+            } else if (distance < heap.peek().getDistance()) {
+                heap.poll();
+                heap.offer(new Neighbor(point.id, distance));
+            }
+        }
+    }
+
+    private static List<Neighbor> sorted(PriorityQueue<Neighbor> heap) {
+        List<Neighbor> result = new ArrayList<>(heap);
+        result.sort(Comparator.comparingDouble(Neighbor::getDistance));
+        return result;
+    }
+
+    /**
+     * 两点间的球面距离(haversine)，单位米
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double dLat = Math.toRadians(y2 - y1);
+        double dLon = Math.toRadians(x2 - x1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(y1)) * Math.cos(Math.toRadians(y2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static double cosLat(double y) {
+        // 避免高纬度时经度跨度过大
+        return Math.max(0.01, Math.cos(Math.toRadians(y)));
+    }
+
+    private static int cell(double degrees) {
+        return (int) Math.floor(degrees / CELL_DEGREES);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class Neighbor {
+        private Long id;
+        /**
+         * 距离，单位米
+         */
+        private double distance;
+    }
+
+    private static class ShopPoint {
+        private final long id;
+        private final double x;
+        private final double y;
+
+        ShopPoint(long id, double x, double y) {
+            this.id = id;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * 一个类型的网格，读多写少，用读写锁保护
+     */
+    private static class TypeGrid {
+        private final Map<Long, List<ShopPoint>> cells = new HashMap<>();
+        private final Map<Long, ShopPoint> points = new HashMap<>();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        void put(long id, double x, double y) {
+            lock.writeLock().lock();
+            try {
+                removeLocked(id);
+                ShopPoint point = new ShopPoint(id, x, y);
+                points.put(id, point);
+                cells.computeIfAbsent(cellKey(cell(x), cell(y)), k -> new ArrayList<>(4)).add(point);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long id) {
+            lock.writeLock().lock();
+            try {
+                removeLocked(id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return points.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void removeLocked(long id) {
+            ShopPoint old = points.remove(id);
+            if (old == null) {
+                return;
+            }
+            long key = cellKey(cell(old.x), cell(old.y));
+            List<ShopPoint> cellPoints = cells.get(key);
+            cellPoints.remove(old);
+            if (cellPoints.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+}
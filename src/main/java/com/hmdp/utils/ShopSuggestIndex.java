@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.ShopSuggestDTO;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.SystemConstants.SUGGEST_TOP_K;
+
+/**
+ * 店铺名称前缀补全
+ * 所有名称构建成一棵字典树，每个节点预先算好以该前缀开头、权重最高的SUGGEST_TOP_K个店铺，查询只需沿前缀走到对应节点；
+ * 字典树构建后只读，店铺变更只标记为脏，由后台定时重建后整体替换
+ */
+@Slf4j
+@Component
+public class ShopSuggestIndex implements ShopIndex {
+
+    // 构建字典树的数据源：店铺id -> 名称和权重
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private volatile Trie trie;
+    private volatile boolean dirty;
+
+    @Override
+    public void load(List<Shop> shops) {
+        shops.forEach(this::put);
+    }
+
+    @Override
+    public void loadFinished() {
+        rebuild();
+    }
+
+    @Override
+    public void onShopChanged(Shop old, Shop current) {
+        put(current);
+        dirty = true;
+    }
+
+    @Override
+    public void onShopRemoved(Shop shop) {
+        entries.remove(shop.getId());
+        dirty = true;
+    }
+
+    /**
+     * 前缀补全
+     * @param prefix 用户输入的前缀
+     * @param limit 最多返回的数量，不超过SUGGEST_TOP_K
+     * @return 按权重降序的店铺，字典树未构建时返回空
+     */
+    public List<ShopSuggestDTO> suggest(String prefix, int limit) {
+        Trie current = trie;
+        String key = normalize(prefix);
+        if (current == null || key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Node node = current.root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        int n = Math.min(limit, node.top.length);
+        List<ShopSuggestDTO> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int index = node.top[i];
+            result.add(new ShopSuggestDTO(current.ids[index], current.names[index]));
+        }
+        return result;
+    }
+
+    /**
+     * 有店铺变更时重建字典树
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop.suggest.rebuild-millis:60000}")
+    public void rebuildIfDirty() {
+        if (dirty && trie != null) {
+            rebuild();
+        }
+    }
+
+    private void rebuild() {
+        dirty = false;
+        long begin = System.currentTimeMillis();
+        Trie built = Trie.build(new ArrayList<>(entries.values()));
+        trie = built;
+        log.info("店铺名称补全字典树构建完成，店铺数：{}，节点数：{}，耗时：{}ms",
+                built.ids.length, built.nodeCount, System.currentTimeMillis() - begin);
+    }
+
+    private void put(Shop shop) {
+        if (shop.getId() == null || StrUtil.isBlank(shop.getName())) {
+            return;
+        }
+        entries.put(shop.getId(), new Entry(shop.getId(), shop.getName(), weight(shop)));
+    }
+
+    /**
+     * 权重：销量和评分都高的店铺靠前，销量取对数避免头部店铺垄断
+     */
+    private static double weight(Shop shop) {
+        int sold = shop.getSold() == null ? 0 : shop.getSold();
+        int score = shop.getScore() == null ? 0 : shop.getScore();
+        return Math.log1p(sold) * (score + 1);
+    }
+
+    private static String normalize(String name) {
+        return name == null ? "" : StrUtil.cleanBlank(name).toLowerCase();
+    }
+
+    private static final class Entry {
+        private final long id;
+        private final String name;
+        private final double weight;
+
+        Entry(long id, String name, double weight) {
+            this.id = id;
+            this.name = name;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 只读的字典树，店铺id和名称存在数组里，节点只保存下标
+     */
+    private static final class Trie {
+        private final Node root;
+        private final long[] ids;
+        private final String[] names;
+        private final int nodeCount;
+
+        private Trie(Node root, long[] ids, String[] names, int nodeCount) {
+            this.root = root;
+            this.ids = ids;
+            this.names = names;
+            this.nodeCount = nodeCount;
+        }
+
+        static Trie build(List<Entry> entries) {
+            // 1. 按权重降序插入，每个节点先到的SUGGEST_TOP_K个就是该前缀下权重最高的
+            entries.sort(Comparator.comparingDouble((Entry e) -> e.weight).reversed().thenComparingLong(e -> e.id));
+            long[] ids = new long[entries.size()];
+            String[] names = new String[entries.size()];
+            BuildNode root = new BuildNode();
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                ids[i] = entry.id;
+                names[i] = entry.name;
+                String key = normalize(entry.name);
+                BuildNode node = root;
+                for (int j = 0; j < key.length(); j++) {
+                    node = node.children.computeIfAbsent(key.charAt(j), c -> new BuildNode());
+                    if (node.top.size() < SUGGEST_TOP_K) {
+                        node.top.add(i);
+                    }
+                }
+            }
+            // 2. 转换成紧凑的只读节点
+            int[] count = new int[1];
+            return new Trie(root.freeze(count), ids, names, count[0]);
+        }
+    }
+
+    /**
+     * 构建过程中的可变节点
+     */
+    private static final class BuildNode {
+        private final TreeMap<Character, BuildNode> children = new TreeMap<>();
+        private final List<Integer> top = new ArrayList<>(1);
+
+        Node freeze(int[] count) {
+            count[0]++;
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, BuildNode> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                nodes[i] = child.getValue().freeze(count);
+                i++;
+            }
+            int[] topArray = new int[top.size()];
+            for (int j = 0; j < topArray.length; j++) {
+                topArray[j] = top.get(j);
+            }
+            return new Node(keys, nodes, topArray);
+        }
+    }
+
+    /**
+     * 只读节点：子节点按字符升序存放，二分查找
+     */
+    private static final class Node {
+        private final char[] keys;
+        private final Node[] children;
+        private final int[] top;
+
+        Node(char[] keys, Node[] children, int[] top) {
+            this.keys = keys;
+            this.children = children;
+            this.top = top;
+        }
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+}
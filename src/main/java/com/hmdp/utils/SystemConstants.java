@@ -5,4 +5,10 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int SUGGEST_TOP_K = 10;
+    public static final int SHOP_DETAIL_BLOG_SIZE = 5;
+    // 热度排行榜保留的博文数量
+    public static final int BLOG_HOT_SIZE = 10000;
+    // 评论列表中每条一级评论预先加载的回复数量
+    public static final int COMMENT_REPLY_PREVIEW_SIZE = 3;
 }
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.IUserService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
+
+/**
+ * 批量解析列表中的用户昵称和头像
+ * 先收集一页数据中不重复的用户id，依次查询本地缓存、redis(一次MGET)，最后一次listByIds查询数据库，
+ * 博文、评论、关注等列表共用，避免每条数据查询一次用户
+ */
+@Component
+public class UserSummaryResolver {
+
+    @Resource
+    private IUserService userService;
+    @Resource
+    private CacheClient cacheClient;
+
+    private final LocalStaleCache<LocalEntry> localCache;
+    private final long localTtlMillis;
+
+    public UserSummaryResolver(
+            @Value("${hmdp.user.summary.local-capacity:10000}") int localCapacity,
+            @Value("${hmdp.user.summary.local-ttl-seconds:60}") long localTtlSeconds) {
+        this.localCache = new LocalStaleCache<>(localCapacity);
+        this.localTtlMillis = TimeUnit.SECONDS.toMillis(localTtlSeconds);
+    }
+
+    /**
+     * 批量查询用户摘要
+     * @param userIds 用户id，可以重复或为null
+     * @return 用户id -> 用户摘要，不存在的用户不在结果中
+     */
+    public Map<Long, UserDTO> resolve(Collection<Long> userIds) {
+        Set<Long> ids = userIds.stream().filter(Objects::nonNull).collect(Collectors.toCollection(LinkedHashSet::new));
+        Map<Long, UserDTO> result = new HashMap<>(ids.size() * 4 / 3 + 1);
+        if (ids.isEmpty()) {
+            return result;
+        }
+        // 1. 本地缓存
+        long now = System.currentTimeMillis();
+        List<Long> misses = new ArrayList<>();
+        for (Long id : ids) {
+            LocalEntry entry = localCache.get(id.toString());
+            if (entry != null && entry.expireAt > now) {
+                result.put(id, entry.user);
+            } else {
+                misses.add(id);
+            }
+        }
+        if (misses.isEmpty()) {
+            return result;
+        }
+        // 2. redis批量查询，未命中的一次查询数据库并写回
+        List<UserDTO> users = cacheClient.queryBatch(
+                CACHE_USER_KEY, misses, UserDTO.class, this::listUsers, UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+        long expireAt = now + localTtlMillis;
+        for (UserDTO user : users) {
+            result.put(user.getId(), user);
+            localCache.put(user.getId().toString(), new LocalEntry(user, expireAt));
+        }
+        return result;
+    }
+
+    /**
+     * 给列表中的每条数据填充用户信息
+     * @param items 列表
+     * @param userIdGetter 取出数据的用户id
+     * @param setter 填充用户信息，用户不存在时不调用
+     */
+    public <T> void fill(List<T> items, Function<T, Long> userIdGetter, BiConsumer<T, UserDTO> setter) {
+        if (items == null || items.isEmpty()) {
+            return;
+        }
+        Map<Long, UserDTO> users = resolve(items.stream().map(userIdGetter).collect(Collectors.toList()));
+        for (T item : items) {
+            UserDTO user = users.get(userIdGetter.apply(item));
+            if (user != null) {
+                setter.accept(item, user);
+            }
+        }
+    }
+
+    /**
+     * 用户修改昵称或头像后删除缓存，其他实例的本地缓存最多在local-ttl-seconds后过期
+     */
+    public void evict(Long userId) {
+        localCache.remove(userId.toString());
+        cacheClient.delete(CACHE_USER_KEY + userId);
+    }
+
+    private List<UserDTO> listUsers(List<Long> ids) {
+        return userService.listByIds(ids).stream()
+                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .collect(Collectors.toList());
+    }
+
+    private static final class LocalEntry {
+        private final UserDTO user;
+        private final long expireAt;
+
+        LocalEntry(UserDTO user, long expireAt) {
+            this.user = user;
+            this.expireAt = expireAt;
+        }
+    }
+}
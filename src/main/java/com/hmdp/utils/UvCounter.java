@@ -0,0 +1,276 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.IsoFields;
+import java.time.temporal.TemporalAdjusters;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.UV_DAY_TTL;
+
+/**
+ * 店铺和博文的独立访客数(UV)
+ * 每个对象每天一个HyperLogLog，访问只放入内存队列，由后台线程把一批访问按key合并成PFADD，一次pipeline写入，不拖慢读请求；
+ * 同时记录每天有访问的对象id，供UvRollupJob把日数据合并成周、月数据。
+ * 按日期范围查询时，已合并的整周、整月用周、月数据代替日数据，一次PFCOUNT多个key得到并集的基数
+ */
+@Slf4j
+@Component
+public class UvCounter {
+    private static final int RECORD_BATCH = 1000;
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private static final ExecutorService UV_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "uv-recorder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    // 待写入redis的访问记录上限，超过时丢弃
+    @Value("${hmdp.uv.queue-size:100000}")
+    private int queueSize;
+
+    // 可信的反向代理地址，只有请求来自这些地址时才读取X-Forwarded-For
+    @Value("${hmdp.uv.trusted-proxies:}")
+    private String[] trustedProxies;
+
+    private Set<String> trustedProxySet;
+
+    private BlockingQueue<Visit> queue;
+    private volatile boolean running = true;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(queueSize);
+        trustedProxySet = Arrays.stream(trustedProxies).map(String::trim).filter(StrUtil::isNotBlank).collect(Collectors.toSet());
+        UV_EXECUTOR.submit(this::run);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        UV_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问，只放入队列，队列已满时丢弃
+     * @param visitor 访客标识，见visitorOf
+     */
+    public void record(UvTarget target, Long id, String visitor) {
+        if (id == null || visitor == null) {
+            return;
+        }
+        if (!queue.offer(new Visit(target, id, visitor, LocalDate.now()))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * 访客标识：已登录时为用户id，未登录时为客户端ip
+     * X-Forwarded-For可以由客户端伪造，只有直连地址是可信代理时才采用，并从右向左跳过可信代理，取第一个不可信的地址
+     */
+    public String visitorOf(HttpServletRequest request) {
+        UserDTO user = UserHolder.getUser();
+        if (user != null) {
+            return user.getId().toString();
+        }
+        String ip = request.getRemoteAddr();
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (trustedProxySet.contains(ip) && StrUtil.isNotBlank(forwarded)) {
+            String[] hops = forwarded.split(",");
+            for (int i = hops.length - 1; i >= 0 && trustedProxySet.contains(ip); i--) {
+                String hop = hops[i].trim();
+                if (StrUtil.isBlank(hop)) {
+                    break;
+                }
+                ip = hop;
+            }
+        }
+        return "ip:" + ip;
+    }
+
+    /**
+     * 日期范围内的独立访客数
+     * 日数据只保留UV_DAY_TTL天，更早的日期只有已合并的整周、整月能统计到
+     * @param begin 开始日期，包含
+     * @param end 结束日期，包含
+     */
+    public long count(UvTarget target, Long id, LocalDate begin, LocalDate end) {
+        // 1. 查询范围内的整周、整月是否已合并
+        List<String> periods = new ArrayList<>();
+        for (LocalDate date = begin; !date.isAfter(end); date = date.plusDays(1)) {
+            if (date.getDayOfMonth() == 1 && !date.with(TemporalAdjusters.lastDayOfMonth()).isAfter(end)) {
+                periods.add(monthOf(date));
+            }
+            if (date.getDayOfWeek() == DayOfWeek.MONDAY && !date.plusDays(6).isAfter(end)) {
+                periods.add(weekOf(date));
+            }
+        }
+        Set<String> rolledUp = new HashSet<>();
+        if (!periods.isEmpty()) {
+            List<String> markers = redisBreaker.execute(() -> stringRedisTemplate.opsForValue().multiGet(
+                    periods.stream().map(target::rollupKey).collect(Collectors.toList())));
+            for (int i = 0; i < periods.size(); i++) {
+                if (markers != null && markers.get(i) != null) {
+                    rolledUp.add(periods.get(i));
+                }
+            }
+        }
+
+        // 2. 优先用月数据，其次周数据，其余用日数据
+        List<String> keys = new ArrayList<>();
+        LocalDate date = begin;
+        while (!date.isAfter(end)) {
+            if (date.getDayOfMonth() == 1 && rolledUp.contains(monthOf(date))) {
+                keys.add(target.key(id, monthOf(date)));
+                date = date.with(TemporalAdjusters.firstDayOfNextMonth());
+            } else if (date.getDayOfWeek() == DayOfWeek.MONDAY && rolledUp.contains(weekOf(date))) {
+                keys.add(target.key(id, weekOf(date)));
+                date = date.plusWeeks(1);
+            } else {
+                keys.add(target.key(id, dayOf(date)));
+                date = date.plusDays(1);
+            }
+        }
+
+        // 3. 多个key的并集基数
+        Long count = redisBreaker.execute(
+                () -> stringRedisTemplate.opsForHyperLogLog().size(keys.toArray(new String[0])));
+        return count == null ? 0 : count;
+    }
+
+    public static String dayOf(LocalDate date) {
+        return date.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    /**
+     * ISO周，例如2026W42
+     */
+    public static String weekOf(LocalDate date) {
+        return date.get(IsoFields.WEEK_BASED_YEAR) + "W" + String.format("%02d", date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+    }
+
+    public static String monthOf(LocalDate date) {
+        return date.format(MONTH_FORMAT);
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        long batchCount = batches.get();
+        metrics.put("recorded", recorded.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("avgBatchSize", batchCount == 0 ? 0 : recorded.get() / batchCount);
+        metrics.put("queued", queue.size());
+        return metrics;
+    }
+
+    @Scheduled(fixedDelay = 5 * 60 * 1000)
+    public void logMetrics() {
+        log.info("UV记录：{}", metrics());
+    }
+
+    private void run() {
+        List<Visit> batch = new ArrayList<>(RECORD_BATCH);
+        while (running) {
+            try {
+                Visit first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, RECORD_BATCH - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // UV本身是估算值，写入失败的一批直接丢弃
+                dropped.addAndGet(batch.size());
+                log.warn("UV写入失败", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Visit> visits) {
+        // 1. 同一个key的访客合并成一条PFADD，有访问的对象id按天合并成一条SADD
+        Map<String, List<byte[]>> visitors = new HashMap<>();
+        Map<String, Set<String>> ids = new HashMap<>();
+        for (Visit visit : visits) {
+            String day = dayOf(visit.date);
+            visitors.computeIfAbsent(visit.target.key(visit.id, day), k -> new ArrayList<>()).add(bytes(visit.visitor));
+            ids.computeIfAbsent(visit.target.idsKey(day), k -> new HashSet<>()).add(visit.id.toString());
+        }
+        // 2. 一次pipeline写入
+        long ttl = TimeUnit.DAYS.toSeconds(UV_DAY_TTL);
+        try {
+            redisBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                visitors.forEach((key, values) -> {
+                    connection.pfAdd(bytes(key), values.toArray(new byte[0][]));
+                    connection.expire(bytes(key), ttl);
+                });
+                ids.forEach((key, members) -> {
+                    connection.sAdd(bytes(key), members.stream().map(UvCounter::bytes).toArray(byte[][]::new));
+                    connection.expire(bytes(key), ttl);
+                });
+                return null;
+            }));
+        } catch (RedisUnavailableException e) {
+            dropped.addAndGet(visits.size());
+            return;
+        }
+        recorded.addAndGet(visits.size());
+        batches.incrementAndGet();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Visit {
+        private final UvTarget target;
+        private final Long id;
+        private final String visitor;
+        private final LocalDate date;
+
+        Visit(UvTarget target, Long id, String visitor, LocalDate date) {
+            this.target = target;
+            this.id = id;
+            this.visitor = visitor;
+            this.date = date;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 统计独立访客的对象类型
+ */
+public enum UvTarget {
+    SHOP("shop"),
+    BLOG("blog");
+
+    private final String name;
+
+    UvTarget(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param period 日、周或月，见UvCounter.dayOf、weekOf、monthOf
+     */
+    public String key(Long id, String period) {
+        return UV_KEY + name + ":" + id + ":" + period;
+    }
+
+    public String idsKey(String period) {
+        return UV_IDS_KEY + name + ":" + period;
+    }
+
+    public String rollupKey(String period) {
+        return UV_ROLLUP_KEY + name + ":" + period;
+    }
+
+    /**
+     * @param name 类型名，例如shop
+     * @return 对应的类型，不支持时返回null
+     */
+    public static UvTarget of(String name) {
+        for (UvTarget target : values()) {
+            if (target.name.equals(name)) {
+                return target;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import com.hmdp.utils.RedisCircuitBreaker.RedisUnavailableException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 计数器增量的累加和读取
+ * 增量用HINCRBY累加到redis的hash中，作为写回数据库之前的日志，应用崩溃不会丢失；由CounterFlusher定时批量写回数据库。
+ * redis不可用时增量先累加到本地分段的LongAdder中，恢复后合并写入redis，不占用熔断器有限的重放队列。
+ * 读取时在数据库的值上加上redis和本地尚未写回的增量
+ */
+@Slf4j
+@Component
+public class WriteBehindCounter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisCircuitBreaker redisBreaker;
+
+    // redis不可用期间的增量，累加时持有读锁，写入redis前持有写锁整体替换
+    private volatile Map<CounterField, Map<Long, LongAdder>> pending = newPending();
+    private final ReadWriteLock pendingLock = new ReentrantReadWriteLock();
+
+    /**
+     * 累加计数，在事务中调用时等事务提交后再累加
+     * @param delta 增量，可以为负数
+     */
+    public void increment(CounterField field, Long id, long delta) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    add(field, id, delta);
+                }
+            });
+            return;
+        }
+        add(field, id, delta);
+    }
+
+    /**
+     * 查询尚未写回数据库的增量，一次pipeline查询所有计数器
+     * @return 计数器 -> id -> 增量，没有增量的id不在结果中
+     */
+    public Map<CounterField, Map<Long, Long>> deltas(List<Long> ids, CounterField... fields) {
+        Map<CounterField, Map<Long, Long>> result = new EnumMap<>(CounterField.class);
+        for (CounterField field : fields) {
+            result.put(field, new HashMap<>());
+        }
+        if (ids.isEmpty()) {
+            return result;
+        }
+        // 1. redis中的增量，包括正在写回的
+        try {
+            List<Object> results = redisBreaker.execute(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[][] members = new byte[ids.size()][];
+                for (int i = 0; i < ids.size(); i++) {
+                    members[i] = bytes(ids.get(i).toString());
+                }
+                for (CounterField field : fields) {
+                    connection.hMGet(bytes(field.getDeltaKey()), members);
+                    connection.hMGet(bytes(field.getFlushingKey()), members);
+                }
+                return null;
+            }));
+            for (int i = 0; i < fields.length; i++) {
+                Map<Long, Long> deltas = result.get(fields[i]);
+                addAll(deltas, ids, (List<?>) results.get(2 * i));
+                addAll(deltas, ids, (List<?>) results.get(2 * i + 1));
+            }
+        } catch (RedisUnavailableException e) {
+            // redis不可用时只加上本地的增量
+        }
+        // 2. 本地的增量
+        Map<CounterField, Map<Long, LongAdder>> local = pending;
+        for (CounterField field : fields) {
+            Map<Long, LongAdder> adders = local.get(field);
+            if (adders.isEmpty()) {
+                continue;
+            }
+            for (Long id : ids) {
+                LongAdder adder = adders.get(id);
+                if (adder != null) {
+                    result.get(field).merge(id, adder.sum(), Long::sum);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 数据库中的值加上增量，结果不小于0
+     */
+    public static Integer apply(Integer value, Long delta) {
+        if (delta == null) {
+            return value;
+        }
+        long base = value == null ? 0 : value;
+        return (int) Math.max(0, base + delta);
+    }
+
+    /**
+     * 把redis不可用期间本地累加的增量写入redis
+     */
+    @Scheduled(fixedDelayString = "${hmdp.counter.replay-millis:1000}")
+    public void replayPending() {
+        if (pending.values().stream().allMatch(Map::isEmpty)) {
+            return;
+        }
+        // 1. 整体替换，之后的增量累加到新的map中
+        Map<CounterField, Map<Long, LongAdder>> drained;
+        pendingLock.writeLock().lock();
+        try {
+            drained = pending;
+            pending = newPending();
+        } finally {
+            pendingLock.writeLock().unlock();
+        }
+        // 2. 一次pipeline写入redis，失败时放回
+        try {
+            redisBreaker.run(() -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                drained.forEach((field, adders) -> {
+                    byte[] key = bytes(field.getDeltaKey());
+                    adders.forEach((id, adder) -> connection.hIncrBy(key, bytes(id.toString()), adder.sum()));
+                });
+                return null;
+            }));
+            log.info("本地累加的计数增量已写入redis，数量：{}", drained.values().stream().mapToInt(Map::size).sum());
+        } catch (RedisUnavailableException e) {
+            drained.forEach((field, adders) -> adders.forEach((id, adder) -> addPending(field, id, adder.sum())));
+        }
+    }
+
+    /**
+     * 停止前尽量把本地的增量写入redis
+     */
+    @PreDestroy
+    public void destroy() {
+        replayPending();
+        long remaining = pending.values().stream().mapToInt(Map::size).sum();
+        if (remaining > 0) {
+            log.warn("redis不可用，{}个计数增量未能写入redis", remaining);
+        }
+    }
+
+    private void add(CounterField field, Long id, long delta) {
+        try {
+            redisBreaker.run(() -> stringRedisTemplate.opsForHash().increment(field.getDeltaKey(), id.toString(), delta));
+        } catch (RedisUnavailableException e) {
+            addPending(field, id, delta);
+        }
+    }
+
+    private void addPending(CounterField field, Long id, long delta) {
+        pendingLock.readLock().lock();
+        try {
+            pending.get(field).computeIfAbsent(id, k -> new LongAdder()).add(delta);
+        } finally {
+            pendingLock.readLock().unlock();
+        }
+    }
+
+    private static void addAll(Map<Long, Long> deltas, List<Long> ids, List<?> values) {
+        for (int i = 0; i < ids.size(); i++) {
+            Object value = values.get(i);
+            if (value != null) {
+                deltas.merge(ids.get(i), Long.parseLong(value.toString()), Long::sum);
+            }
+        }
+    }
+
+    private static Map<CounterField, Map<Long, LongAdder>> newPending() {
+        Map<CounterField, Map<Long, LongAdder>> map = new EnumMap<>(CounterField.class);
+        for (CounterField field : CounterField.values()) {
+            map.put(field, new ConcurrentHashMap<>());
+        }
+        return map;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
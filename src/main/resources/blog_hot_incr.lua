@@ -0,0 +1,11 @@
+-- 这里的 KEYS[1] 是热度排行榜，KEYS[2] 是热度的基准时间
+-- ARGV[1] 是博文id，ARGV[2] 是事件权重，ARGV[3] 是当前时间戳，ARGV[4] 是半衰期(毫秒)
+-- 热度 = 权重 * 2 ^ ((事件时间 - 基准时间) / 半衰期)，越新的事件权重越大，等价于旧的热度随时间衰减
+-- 基准时间和增量在同一个脚本中读取和写入，不会与重新缩放交错
+local epoch = tonumber(redis.call('GET', KEYS[2]))
+if (not epoch) then
+    -- 排行榜尚未从数据库建立，建立时会包含这次事件
+    return nil
+end
+local score = tonumber(ARGV[2]) * 2 ^ ((tonumber(ARGV[3]) - epoch) / tonumber(ARGV[4]))
+return redis.call('ZINCRBY', KEYS[1], score, ARGV[1])
@@ -0,0 +1,12 @@
+-- 这里的 KEYS[1] 是热度排行榜，KEYS[2] 是热度的基准时间
+-- ARGV[1] 是新的基准时间，ARGV[2] 是半衰期(毫秒)，ARGV[3] 是排行榜保留的数量
+-- 把所有热度按新基准时间整体缩小，避免分数随时间指数增长而溢出，顺便只保留热度最高的部分
+local epoch = tonumber(redis.call('GET', KEYS[2]))
+if (not epoch) then
+    return 0
+end
+local factor = 2 ^ ((epoch - tonumber(ARGV[1])) / tonumber(ARGV[2]))
+redis.call('ZUNIONSTORE', KEYS[1], 1, KEYS[1], 'WEIGHTS', string.format('%.17g', factor))
+redis.call('SET', KEYS[2], ARGV[1])
+redis.call('ZREMRANGEBYRANK', KEYS[1], 0, -(tonumber(ARGV[3]) + 1))
+return 1
@@ -0,0 +1,21 @@
+-- 这里的 KEYS[1] 是热度排行榜，KEYS[2] 是热度的基准时间
+-- ARGV[1] 是上一页最后一个的热度(第一页为+inf)，ARGV[2] 是游标的基准时间(没有时为空串)，ARGV[3] 是半衰期(毫秒)，
+-- ARGV[4] 是跳过的数量，ARGV[5] 是每页数量
+-- 返回 {基准时间, 实际使用的max, 博文id, 热度, ...}，排行榜尚未建立时返回空
+-- 基准时间和查询在同一个脚本中读取，不会与重新缩放交错
+local epoch = redis.call('GET', KEYS[2])
+if (not epoch) then
+    return {}
+end
+local max = ARGV[1]
+if (max ~= '+inf' and ARGV[2] ~= '' and ARGV[2] ~= epoch) then
+    -- 游标发出后热度已整体缩放，按同样的比例缩放max；略微放大，缩放的舍入误差不会把上一页最后的几个排除在外
+    local factor = 2 ^ ((tonumber(ARGV[2]) - tonumber(epoch)) / tonumber(ARGV[3]))
+    max = string.format('%.17g', tonumber(max) * factor * (1 + 1e-12))
+end
+local result = {epoch, max}
+local tuples = redis.call('ZREVRANGEBYSCORE', KEYS[1], max, '-inf', 'WITHSCORES', 'LIMIT', ARGV[4], ARGV[5])
+for _, value in ipairs(tuples) do
+    table.insert(result, value)
+end
+return result
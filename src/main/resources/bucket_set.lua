@@ -0,0 +1,10 @@
+-- 这里的 KEYS[1] 是桶的key
+-- ARGV[1] 是field，ARGV[2] 是带过期时间头部的value，ARGV[3] 是桶的ttl(秒)
+-- 桶中是多个实体，只延长桶的ttl，不因某个实体的短ttl(如空值)缩短其他实体的寿命
+redis.call('HSET', KEYS[1], ARGV[1], ARGV[2])
+local ttl = redis.call('TTL', KEYS[1])
+-- ttl为-1(没有ttl)时同样设置
+if (ttl < tonumber(ARGV[3])) then
+    redis.call('EXPIRE', KEYS[1], ARGV[3])
+end
+return 1
@@ -0,0 +1,6 @@
+-- 这里的 KEYS[1] 是正在写回的hash，ARGV[1] 是本次写回的批次号
+-- 批次号一致才删除：锁过期后其他实例可能已经删除并轮换出了新的批次，不能误删新批次的增量
+if (redis.call('HGET', KEYS[1], '#batch') == ARGV[1]) then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
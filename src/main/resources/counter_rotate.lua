@@ -0,0 +1,15 @@
+-- 这里的 KEYS[1] 是计数器的增量hash，KEYS[2] 是正在写回的hash
+-- ARGV[1] 是新的批次号
+-- 正在写回的hash已有批次号，说明上次写回中断，沿用原批次号；否则把增量整体改名为正在写回，并记录新的批次号
+local batch = redis.call('HGET', KEYS[2], '#batch')
+if (batch) then
+    return batch
+end
+if (redis.call('EXISTS', KEYS[2]) == 0) then
+    if (redis.call('EXISTS', KEYS[1]) == 0) then
+        return false
+    end
+    redis.call('RENAME', KEYS[1], KEYS[2])
+end
+redis.call('HSET', KEYS[2], '#batch', ARGV[1])
+return ARGV[1]
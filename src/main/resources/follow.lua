@@ -0,0 +1,16 @@
+-- 这里的 KEYS[1] 是用户的关注集合，KEYS[2] 是关注集合的版本号
+-- ARGV[1] 为1时关注、为0时取关、为其他值时删除集合，ARGV[2] 是被关注的用户id，ARGV[3] 是版本号的过期时间(秒)
+-- 每次变更都递增版本号，变更前已开始的重建不会写入旧的关注集合
+redis.call('INCR', KEYS[2])
+redis.call('EXPIRE', KEYS[2], ARGV[3])
+if (ARGV[1] ~= '1' and ARGV[1] ~= '0') then
+    return redis.call('DEL', KEYS[1])
+end
+-- 集合不存在(尚未加载或已过期)时不写入，下次读取时从数据库重建
+if (redis.call('EXISTS', KEYS[1]) == 0) then
+    return 0
+end
+if (ARGV[1] == '1') then
+    return redis.call('SADD', KEYS[1], ARGV[2])
+end
+return redis.call('SREM', KEYS[1], ARGV[2])
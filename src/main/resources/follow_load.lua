@@ -0,0 +1,17 @@
+-- 这里的 KEYS[1] 是用户的关注集合，KEYS[2] 是关注集合的版本号
+-- ARGV[1] 是查询数据库之前读到的版本号(不存在时为空串)，ARGV[2] 是集合的过期时间(秒)，ARGV[3]之后是集合成员
+-- 集合已存在时不覆盖，返回1；查询数据库期间关注关系有变更(版本号变化)时不写入，返回0
+if (redis.call('EXISTS', KEYS[1]) == 1) then
+    return 1
+end
+local version = redis.call('GET', KEYS[2])
+if ((version or '') ~= ARGV[1]) then
+    return 0
+end
+-- 分批写入，避免成员太多时unpack超出lua栈的限制
+local batch = 1000
+for i = 3, #ARGV, batch do
+    redis.call('SADD', KEYS[1], unpack(ARGV, i, math.min(i + batch - 1, #ARGV)))
+end
+redis.call('EXPIRE', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,14 @@
+-- 用影子key替换正式key，并注销影子key
+-- KEYS[1] 是正式key，KEYS[2] 是影子key，KEYS[3] 是正在重建的影子key集合，KEYS[4] 是没有店铺的类型的空标记，KEYS[5] 是影子key的变更记录
+redis.call('SREM', KEYS[3], KEYS[2])
+redis.call('DEL', KEYS[5])
+if (redis.call('EXISTS', KEYS[2]) == 1) then
+    redis.call('RENAME', KEYS[2], KEYS[1])
+    redis.call('PERSIST', KEYS[1])
+    redis.call('DEL', KEYS[4])
+    return 1
+end
+-- 该类型没有店铺，删除正式key并写入空标记
+redis.call('DEL', KEYS[1])
+redis.call('SET', KEYS[4], '1')
+return 0
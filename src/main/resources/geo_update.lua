@@ -0,0 +1,29 @@
+-- 同步一个店铺的坐标，只写入已加载的正式key和正在重建的影子key，避免半份数据被当成已加载
+-- KEYS[1] 是正式key，KEYS[2] 是正在重建的影子key集合，KEYS[3] 是没有店铺的类型的空标记
+-- ARGV[1] 是影子key的过期时间(秒)，ARGV[2] 是店铺id，ARGV[3]、ARGV[4] 是经纬度，没有经纬度时表示删除
+local function apply(key)
+    if (ARGV[3]) then
+        redis.call('GEOADD', key, ARGV[3], ARGV[4], ARGV[2])
+    else
+        redis.call('ZREM', key, ARGV[2])
+    end
+end
+if (redis.call('EXISTS', KEYS[1]) == 1) then
+    apply(KEYS[1])
+elseif (ARGV[3] and redis.call('EXISTS', KEYS[3]) == 1) then
+    -- 已加载但原来没有店铺的类型，写入第一个店铺后去掉空标记
+    apply(KEYS[1])
+    redis.call('DEL', KEYS[3])
+end
+-- 影子key在重建开始时登记，替换正式key时注销；写入影子key的同时记录变更的店铺，
+-- 重建在替换前从数据库重新读取这些店铺，避免重建读到旧坐标后才写入影子key，覆盖这里的变更
+for _, shadow in ipairs(redis.call('SMEMBERS', KEYS[2])) do
+    if (ARGV[3] or redis.call('EXISTS', shadow) == 1) then
+        apply(shadow)
+        redis.call('EXPIRE', shadow, ARGV[1])
+    end
+    local dirty = shadow .. ':dirty'
+    redis.call('SADD', dirty, ARGV[2])
+    redis.call('EXPIRE', dirty, ARGV[1])
+end
+return 1
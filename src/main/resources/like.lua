@@ -0,0 +1,13 @@
+-- 这里的 KEYS[1] 是博文的点赞集合，KEYS[2] 是待刷新到数据库的点赞数增量
+-- ARGV[1] 是用户id，ARGV[2] 是当前时间戳，ARGV[3] 是博文id
+-- 已点赞则取消点赞，否则点赞；点赞集合和增量在同一个脚本里修改，不会只改一半
+-- 点赞返回0，取消点赞返回原来的点赞时间，用于按当时的权重扣回热度
+local likedAt = redis.call('ZSCORE', KEYS[1], ARGV[1])
+if (likedAt) then
+    redis.call('ZREM', KEYS[1], ARGV[1])
+    redis.call('HINCRBY', KEYS[2], ARGV[3], -1)
+    return tonumber(likedAt)
+end
+redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])
+redis.call('HINCRBY', KEYS[2], ARGV[3], 1)
+return 0
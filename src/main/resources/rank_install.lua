@@ -0,0 +1,27 @@
+-- 用一次重建的影子key替换某个类型的排行榜，并注销这次重建
+-- KEYS[1] 是类型的已加载标记，KEYS[2] 是该类型正在进行的重建id集合，KEYS[3] 是该类型现有排行榜的key后缀集合，
+-- KEYS[4] 是这次重建写过的key后缀集合
+-- ARGV[1] 是正式key前缀，ARGV[2] 是这次重建的影子key前缀，ARGV[3] 是重建id
+redis.call('SREM', KEYS[2], ARGV[3])
+-- 1. 这次重建没有写过的排行榜(例如商圈的店铺全部迁走)直接删除
+for _, suffix in ipairs(redis.call('SMEMBERS', KEYS[3])) do
+    if (redis.call('SISMEMBER', KEYS[4], suffix) == 0) then
+        redis.call('DEL', ARGV[1] .. suffix)
+    end
+end
+-- 2. 影子key替换正式key，影子key中的店铺全部被删除时删除正式key
+redis.call('DEL', KEYS[3])
+for _, suffix in ipairs(redis.call('SMEMBERS', KEYS[4])) do
+    local shadow = ARGV[2] .. suffix
+    local key = ARGV[1] .. suffix
+    if (redis.call('EXISTS', shadow) == 1) then
+        redis.call('RENAME', shadow, key)
+        redis.call('PERSIST', key)
+        redis.call('SADD', KEYS[3], suffix)
+    else
+        redis.call('DEL', key)
+    end
+end
+redis.call('DEL', KEYS[4])
+redis.call('SET', KEYS[1], '1')
+return 1
@@ -0,0 +1,36 @@
+-- 同步一个店铺在某个类型排行榜中的分数，只写入已加载的排行榜和正在重建的影子key
+-- KEYS[1] 是类型的已加载标记，KEYS[2] 是该类型正在进行的重建id集合，KEYS[3] 是该类型现有排行榜的key后缀集合
+-- ARGV[1] 是正式key前缀，ARGV[2] 是影子key前缀，ARGV[3] 是影子key的过期时间(秒)，ARGV[4] 是类型id，ARGV[5] 是店铺id，
+-- 之后每两个一组：key后缀({字段}:{typeId}或{字段}:{typeId}:{分区})和分数，分数为空串时从该排行榜删除
+local function apply(key, score)
+    if (score == '') then
+        redis.call('ZREM', key, ARGV[5])
+    else
+        redis.call('ZADD', key, score, ARGV[5])
+    end
+end
+if (redis.call('EXISTS', KEYS[1]) == 1) then
+    for i = 6, #ARGV, 2 do
+        apply(ARGV[1] .. ARGV[i], ARGV[i + 1])
+        if (ARGV[i + 1] ~= '') then
+            redis.call('SADD', KEYS[3], ARGV[i])
+        end
+    end
+end
+-- 重建开始时登记，替换正式key时注销；写入影子key的同时记录写过的key后缀和变更的店铺，
+-- 重建据此替换新出现的商圈排行榜，并在替换前从数据库重新读取这些店铺，避免被扫描时读到的旧数据覆盖
+for _, build in ipairs(redis.call('SMEMBERS', KEYS[2])) do
+    local prefix = ARGV[2] .. build .. ':'
+    local keys = prefix .. 'keys:' .. ARGV[4]
+    for i = 6, #ARGV, 2 do
+        apply(prefix .. ARGV[i], ARGV[i + 1])
+        if (ARGV[i + 1] ~= '') then
+            redis.call('EXPIRE', prefix .. ARGV[i], ARGV[3])
+            redis.call('SADD', keys, ARGV[i])
+            redis.call('EXPIRE', keys, ARGV[3])
+        end
+    end
+    redis.call('SADD', prefix .. 'dirty', ARGV[5])
+    redis.call('EXPIRE', prefix .. 'dirty', ARGV[3])
+end
+return 1
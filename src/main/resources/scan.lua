@@ -0,0 +1,3 @@
+-- 这里的 ARGV[1] 是游标，ARGV[2] 是匹配模式，ARGV[3] 是每次扫描的数量
+-- 返回 {下一个游标, {key...}}，游标由调用方保存，下次从这里继续扫描
+return redis.call('SCAN', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3])
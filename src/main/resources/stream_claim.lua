@@ -0,0 +1,23 @@
+-- 这里的 KEYS[1] 是stream，ARGV[1] 是消费者组，ARGV[2] 是当前消费者
+-- ARGV[3] 是最短空闲时间(毫秒)，ARGV[4] 是每次检查的未确认任务数量，ARGV[5] 是本次检查的起始任务id(第一次为-)
+-- 把其他消费者(例如主机名变化后不再存在的消费者)空闲太久的未确认任务转给当前消费者
+-- 返回 {接管的数量, 下一次检查的起始任务id}，检查完所有未确认任务时起始任务id为空串
+local pending = redis.call('XPENDING', KEYS[1], ARGV[1], ARGV[5], '+', ARGV[4])
+local next = ''
+if (#pending == tonumber(ARGV[4])) then
+    -- 下一次从最后一个任务id的下一个id开始
+    local ms, seq = string.match(pending[#pending][1], '(%d+)-(%d+)')
+    next = ms .. '-' .. string.format('%d', tonumber(seq) + 1)
+end
+local ids = {}
+for _, entry in ipairs(pending) do
+    -- entry依次是任务id、消费者、空闲时间、投递次数
+    if (entry[2] ~= ARGV[2] and tonumber(entry[3]) >= tonumber(ARGV[3])) then
+        table.insert(ids, entry[1])
+    end
+end
+if (#ids == 0) then
+    return {0, next}
+end
+local claimed = redis.call('XCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], unpack(ids))
+return {#claimed, next}
@@ -0,0 +1,4 @@
+-- 这里的 KEYS[1] 是stream，ARGV[1] 是消费者组
+-- stream不存在时一并创建，消费者组已存在时忽略错误
+redis.pcall('XGROUP', 'CREATE', KEYS[1], ARGV[1], '0', 'MKSTREAM')
+return 1
@@ -1,15 +1,26 @@
 package com.hmdp;
 
 import com.hmdp.entity.Shop;
+import com.hmdp.job.BlogHotLoader;
+import com.hmdp.job.ShopGeoLoader;
+import com.hmdp.job.ShopRankLoader;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ShopSpatialIndex;
 import io.lettuce.core.RedisClient;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
+import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -27,6 +38,21 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ShopSpatialIndex shopSpatialIndex;
+
+    @Resource
+    private ShopGeoLoader shopGeoLoader;
+
+    @Resource
+    private ShopRankLoader shopRankLoader;
+
+    @Resource
+    private BlogHotLoader blogHotLoader;
+
     @Test
     void testSaveShop() throws InterruptedException {
         Shop shop = shopService.getById(1L);
@@ -55,4 +81,104 @@ class HmDianPingApplicationTests {
         long end = System.currentTimeMillis();
         System.out.println("time = " + (end - begin));
     }
+
+    /**
+     * 对比两种存储方式下每个店铺缓存占用的内存：每个店铺一个string key vs 按id区间分桶的hash
+     */
+    @Test
+    void testShopCacheMemory() {
+        Shop shop = shopService.getById(1L);
+        int n = 10000;
+        String stringPrefix = "test:" + RedisConstants.CACHE_SHOP_KEY;
+        String bucketPrefix = "test:" + RedisConstants.CACHE_SHOP_BUCKET_KEY;
+
+        long before = usedMemory();
+        for (long id = 0; id < n; id++) {
+            cacheClient.set(stringPrefix + id, shop.setId(id), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        long stringLayout = usedMemory() - before;
+
+        before = usedMemory();
+        for (long id = 0; id < n; id++) {
+            cacheClient.setToBucket(bucketPrefix, id, shop.setId(id), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        long bucketLayout = usedMemory() - before;
+
+        String encoding = stringRedisTemplate.execute(
+                (RedisCallback<String>) connection -> String.valueOf(connection.encodingOf((bucketPrefix + 0).getBytes())));
+        System.out.println("string key: " + stringLayout / n + " bytes/entry");
+        System.out.println("hash bucket(" + encoding + "): " + bucketLayout / n + " bytes/entry");
+
+        stringRedisTemplate.delete(stringRedisTemplate.keys("test:cache:shop:*"));
+    }
+
+    private long usedMemory() {
+        Properties info = stringRedisTemplate.execute((RedisCallback<Properties>) connection -> connection.info("memory"));
+        return Long.parseLong(info.getProperty("used_memory"));
+    }
+
+    /**
+     * 对比附近商铺查询的耗时：进程内空间索引 vs redis GEO
+     * 需要先访问一次/shop/of/type?typeId=1&x=..&y=..加载GEO数据
+     */
+    @Test
+    void testNearbyBenchmark() throws InterruptedException {
+        Long typeId = 1L;
+        // 空间索引在应用启动后异步构建
+        while (!shopSpatialIndex.isReady()) {
+            Thread.sleep(100);
+        }
+        int n = 10000;
+        int limit = 50;
+        double[][] points = new double[n][2];
+        for (int i = 0; i < n; i++) {
+            points[i][0] = 120.13 + Math.random() * 0.05;
+            points[i][1] = 30.20 + Math.random() * 0.10;
+        }
+
+        long begin = System.nanoTime();
+        for (double[] p : points) {
+            shopSpatialIndex.radius(typeId, p[0], p[1], RedisConstants.SHOP_GEO_RADIUS, limit);
+        }
+        long local = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (double[] p : points) {
+            stringRedisTemplate.opsForGeo().radius(
+                    RedisConstants.SHOP_GEO_KEY + typeId,
+                    new Circle(new Point(p[0], p[1]), new Distance(RedisConstants.SHOP_GEO_RADIUS, RedisGeoCommands.DistanceUnit.METERS)),
+                    RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(limit));
+        }
+        long redis = System.nanoTime() - begin;
+
+        System.out.println("local index: " + local / n / 1000 + " us/query");
+        System.out.println("redis geo: " + redis / n / 1000 + " us/query");
+    }
+
+    /**
+     * 全量重建店铺GEO数据，进度和速度见日志
+     */
+    @Test
+    void loadShopData() {
+        long total = shopGeoLoader.rebuildAll();
+        System.out.println("loaded = " + total);
+    }
+
+    /**
+     * 全量重建店铺排行榜
+     */
+    @Test
+    void loadShopRank() {
+        long total = shopRankLoader.rebuildAll();
+        System.out.println("loaded = " + total);
+    }
+
+    /**
+     * 全量重建博文热度排行榜
+     */
+    @Test
+    void loadBlogHot() {
+        long total = blogHotLoader.rebuild();
+        System.out.println("loaded = " + total);
+    }
 }
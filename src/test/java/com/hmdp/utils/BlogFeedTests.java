@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlogFeedTests {
+
+    @Test
+    void ordersEqualTimestampsLikeRedisAcrossPages() {
+        // 收件箱和发件箱中三篇博文时间相同，按id降序，与ZREVRANGEBYSCORE一致
+        Set<ZSetOperations.TypedTuple<String>> inbox = tuples("3", 100, "1", 100);
+        Set<ZSetOperations.TypedTuple<String>> outbox = tuples("2", 100);
+
+        BlogFeed.FeedPage first = BlogFeed.merge(Arrays.asList(inbox, outbox), 100, 0, 2);
+        assertEquals(Arrays.asList(3L, 2L), first.getIds());
+        assertEquals(100L, first.getMinTime());
+        assertEquals(2, first.getOffset());
+
+        // 下一页从同一时间继续，跳过已返回的两篇
+        BlogFeed.FeedPage second = BlogFeed.merge(Arrays.asList(inbox, outbox), first.getMinTime(), first.getOffset(), 2);
+        assertEquals(Collections.singletonList(1L), second.getIds());
+        assertEquals(100L, second.getMinTime());
+        assertEquals(3, second.getOffset());
+    }
+
+    @Test
+    void dropsBlogsPresentInBothInboxAndOutbox() {
+        Set<ZSetOperations.TypedTuple<String>> inbox = tuples("5", 200, "4", 150);
+        Set<ZSetOperations.TypedTuple<String>> outbox = tuples("5", 200, "3", 120);
+
+        BlogFeed.FeedPage page = BlogFeed.merge(Arrays.asList(inbox, outbox), Long.MAX_VALUE, 0, 10);
+        assertEquals(Arrays.asList(5L, 4L, 3L), page.getIds());
+        assertEquals(120L, page.getMinTime());
+        assertEquals(1, page.getOffset());
+
+        // 重复的博文不占用分页的位置
+        page = BlogFeed.merge(Arrays.asList(inbox, outbox), Long.MAX_VALUE, 0, 2);
+        assertEquals(Arrays.asList(5L, 4L), page.getIds());
+        assertEquals(150L, page.getMinTime());
+    }
+
+    @Test
+    void returnsEmptyPageWhenOffsetPassesAllEntries() {
+        BlogFeed.FeedPage page = BlogFeed.merge(Arrays.asList(tuples("1", 100), null), 100, 5, 10);
+        assertTrue(page.getIds().isEmpty());
+        assertEquals(0, page.getOffset());
+    }
+
+    private static Set<ZSetOperations.TypedTuple<String>> tuples(Object... memberAndScores) {
+        Set<ZSetOperations.TypedTuple<String>> tuples = new LinkedHashSet<>();
+        for (int i = 0; i < memberAndScores.length; i += 2) {
+            tuples.add(new DefaultTypedTuple<>((String) memberAndScores[i], ((Integer) memberAndScores[i + 1]).doubleValue()));
+        }
+        return tuples;
+    }
+}
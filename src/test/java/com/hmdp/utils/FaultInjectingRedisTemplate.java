@@ -0,0 +1,64 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 可注入故障的redis替身，数据保存在内存中
+ * 可以为每次调用增加延迟，或模拟连接断开
+ */
+class FaultInjectingRedisTemplate extends StringRedisTemplate {
+    final Map<String, String> data = new ConcurrentHashMap<>();
+    // 实际到达redis的调用次数
+    final AtomicInteger calls = new AtomicInteger();
+    volatile long latencyMillis;
+    volatile boolean connectionDropped;
+
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, String> valueOps = (ValueOperations<String, String>) Proxy.newProxyInstance(
+            ValueOperations.class.getClassLoader(), new Class[]{ValueOperations.class}, (proxy, method, args) -> {
+                injectFault();
+                switch (method.getName()) {
+                    case "get":
+                        return data.get((String) args[0]);
+                    case "set":
+                        data.put((String) args[0], (String) args[1]);
+                        return null;
+                    case "setIfAbsent":
+                        return data.putIfAbsent((String) args[0], (String) args[1]) == null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    @Override
+    public ValueOperations<String, String> opsForValue() {
+        return valueOps;
+    }
+
+    @Override
+    public Boolean delete(String key) {
+        injectFault();
+        return data.remove(key) != null;
+    }
+
+    private void injectFault() {
+        calls.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (connectionDropped) {
+            throw new RedisConnectionFailureException("connection dropped");
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.BitSet;
+
+import static com.hmdp.utils.OpenHours.SLOTS_PER_DAY;
+import static com.hmdp.utils.OpenHours.SLOTS_PER_WEEK;
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpenHoursTests {
+
+    @Test
+    void parsesRangesEveryDay() {
+        BitSet slots = OpenHours.parse("11:00-13:50,17:00-20:50");
+        for (int day = 0; day < 7; day++) {
+            int base = day * SLOTS_PER_DAY;
+            // 11:00-13:30的完整时间片，13:30-13:50不完整
+            assertFalse(slots.get(base + 21));
+            assertTrue(slots.get(base + 22));
+            assertTrue(slots.get(base + 26));
+            assertFalse(slots.get(base + 27));
+            assertTrue(slots.get(base + 34));
+            assertTrue(slots.get(base + 40));
+            assertFalse(slots.get(base + 41));
+        }
+        assertEquals(7 * (5 + 7), slots.cardinality());
+    }
+
+    @Test
+    void overnightRangeContinuesToNextDay() {
+        BitSet slots = OpenHours.parse("22:00-02:00");
+        assertEquals(7 * 8, slots.cardinality());
+        // 周一22:00到周二02:00
+        assertTrue(slots.get(44));
+        assertTrue(slots.get(SLOTS_PER_DAY + 3));
+        assertFalse(slots.get(SLOTS_PER_DAY + 4));
+        // 周日晚上营业到周一凌晨
+        assertTrue(slots.get(SLOTS_PER_WEEK - 1));
+        assertTrue(slots.get(0));
+        assertTrue(slots.get(3));
+        assertFalse(slots.get(4));
+
+        BitSet midnight = OpenHours.parse("18:00-00:00");
+        assertEquals(7 * 12, midnight.cardinality());
+        assertTrue(midnight.get(SLOTS_PER_DAY - 1));
+        assertFalse(midnight.get(SLOTS_PER_DAY));
+    }
+
+    @Test
+    void rangeWithoutFullSlotIsNotOpen() {
+        // 同一时间片内的短时段不能当成跨零点营业24小时
+        assertTrue(OpenHours.parse("10:10-10:50").isEmpty());
+        assertTrue(OpenHours.parse("22:15-22:40").isEmpty());
+
+        BitSet slots = OpenHours.parse("10:10-11:00");
+        assertEquals(7, slots.cardinality());
+        assertTrue(slots.get(21));
+    }
+
+    @Test
+    void allDay() {
+        assertEquals(SLOTS_PER_WEEK, OpenHours.parse("24小时营业").cardinality());
+        assertEquals(SLOTS_PER_WEEK, OpenHours.parse("全天").cardinality());
+    }
+
+    @Test
+    void unparseableReturnsNull() {
+        assertNull(OpenHours.parse(null));
+        assertNull(OpenHours.parse(" "));
+        assertNull(OpenHours.parse("周末休息"));
+        assertNull(OpenHours.parse("25:00-26:00"));
+    }
+
+    @Test
+    void slotOfStartsOnMonday() {
+        assertEquals(0, OpenHours.slotOf(LocalDateTime.of(2021, 12, 6, 0, 0)));
+        assertEquals(21, OpenHours.slotOf(LocalDateTime.of(2021, 12, 6, 10, 59)));
+        assertEquals(SLOTS_PER_WEEK - 1, OpenHours.slotOf(LocalDateTime.of(2021, 12, 12, 23, 30)));
+    }
+}
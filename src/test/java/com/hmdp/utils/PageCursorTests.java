@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageCursorTests {
+
+    @Test
+    void decodesWhatItEncodes() {
+        JSONObject values = new JSONObject();
+        values.set("id", 42L);
+        values.set("score", 4.5);
+        String cursor = PageCursor.encode(values);
+        // 游标放在url参数中，只使用url安全的字符
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"));
+
+        JSONObject decoded = PageCursor.decode(cursor);
+        assertNotNull(decoded);
+        assertEquals(42L, decoded.getLong("id"));
+        assertEquals(4.5, decoded.getDouble("score"));
+    }
+
+    @Test
+    void blankCursorIsFirstPage() {
+        assertTrue(PageCursor.decode("").isEmpty());
+        assertTrue(PageCursor.decode(null).isEmpty());
+    }
+
+    @Test
+    void rejectsCursorsThatAreNotJsonObjects() {
+        assertNull(PageCursor.decode(Base64.encodeUrlSafe("not json")));
+        assertNull(PageCursor.decode(Base64.encodeUrlSafe("[1,2]")));
+        assertNull(PageCursor.decode(Base64.encodeUrlSafe("\"id\"")));
+    }
+}
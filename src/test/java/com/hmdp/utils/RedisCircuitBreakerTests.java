@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RedisCircuitBreakerTests {
+
+    private FaultInjectingRedisTemplate redis;
+    private RedisCircuitBreaker breaker;
+    private CacheClient cacheClient;
+    private final AtomicInteger dbQueries = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        redis = new FaultInjectingRedisTemplate();
+        // 连续失败3次断开，200ms后探测，超过50ms算慢调用
+        breaker = new RedisCircuitBreaker(3, 200, 50, 100);
+        cacheClient = new CacheClient(redis, new AdaptiveTtlPolicy(), breaker);
+        dbQueries.set(0);
+    }
+
+    @Test
+    void servesStaleValueWhenConnectionDrops() {
+        queryShop(1L);
+        redis.connectionDropped = true;
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("shop-1", queryShop(1L).getName());
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        // 断开后不再访问redis，也不访问数据库
+        int calls = redis.calls.get();
+        assertEquals("shop-1", queryShop(1L).getName());
+        assertEquals(calls, redis.calls.get());
+        assertEquals(1, dbQueries.get());
+    }
+
+    @Test
+    void fallsBackToDatabaseWithoutStaleValue() {
+        redis.connectionDropped = true;
+
+        assertEquals("shop-2", queryShop(2L).getName());
+        assertEquals(1, dbQueries.get());
+        // 降级查询的结果同样进入本地缓存
+        assertEquals("shop-2", queryShop(2L).getName());
+        assertEquals(1, dbQueries.get());
+    }
+
+    @Test
+    void slowRedisOpensBreaker() {
+        redis.latencyMillis = 80;
+        queryShop(3L);
+        queryShop(3L);
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+
+        long begin = System.currentTimeMillis();
+        assertEquals("shop-3", queryShop(3L).getName());
+        assertTrue(System.currentTimeMillis() - begin < redis.latencyMillis);
+    }
+
+    @Test
+    void replaysQueuedInvalidationAfterRecovery() throws InterruptedException {
+        queryShop(4L);
+        assertTrue(redis.data.containsKey(CACHE_SHOP_KEY + 4));
+        openBreaker();
+
+        cacheClient.delete(CACHE_SHOP_KEY + 4);
+        assertEquals(1, breaker.pendingReplays());
+        assertTrue(redis.data.containsKey(CACHE_SHOP_KEY + 4));
+
+        // 恢复后由探测请求关闭熔断器，并重放删除
+        redis.connectionDropped = false;
+        Thread.sleep(250);
+        queryShop(5L);
+        assertEquals(RedisCircuitBreaker.State.CLOSED, breaker.getState());
+        for (int i = 0; i < 100 && breaker.pendingReplays() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(redis.data.containsKey(CACHE_SHOP_KEY + 4));
+    }
+
+    @Test
+    void failedProbeReopensBreaker() throws InterruptedException {
+        openBreaker();
+        Thread.sleep(250);
+
+        int calls = redis.calls.get();
+        queryShop(6L);
+        // 只放行了一次探测
+        assertEquals(calls + 1, redis.calls.get());
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void openBreaker() {
+        redis.connectionDropped = true;
+        for (int i = 0; i < 3; i++) {
+            queryShop(0L);
+        }
+        assertEquals(RedisCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private Shop queryShop(Long id) {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::loadShop, 30L, TimeUnit.MINUTES);
+    }
+
+    private Shop loadShop(Long id) {
+        dbQueries.incrementAndGet();
+        return new Shop().setId(id).setName("shop-" + id);
+    }
+}
@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopNameIndexTests {
+
+    private ShopNameIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopNameIndex();
+        index.load(Arrays.asList(
+                shop(1L, "一点点奶茶", "拱墅区"),
+                shop(2L, "奶茶店", "拱墅区"),
+                shop(3L, "喜茶", "西湖区"),
+                shop(4L, "KFC 肯德基", "西湖区"),
+                shop(5L, "茶奶", "西湖区")));
+        index.loadFinished();
+    }
+
+    @Test
+    void matchesSubstringsWithPrefixAndShorterNamesFirst() {
+        // 以关键字开头的优先，其次名称短的优先
+        assertEquals(Arrays.asList(2L, 1L), index.search("奶茶", null, 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("点奶茶", null, 0, 10));
+        // 任何一个二元组不存在时没有结果
+        assertTrue(index.search("奶店", null, 0, 10).isEmpty());
+    }
+
+    @Test
+    void matchesSingleCharacterQueries() {
+        // 单字查询用单字词项：茶奶(开头)，喜茶(2字)，奶茶店(3字)，一点点奶茶(5字)
+        assertEquals(Arrays.asList(5L, 3L, 2L, 1L), index.search("茶", null, 0, 10));
+        assertEquals(Collections.singletonList(4L), index.search("肯", null, 0, 10));
+        assertTrue(index.search("咖", null, 0, 10).isEmpty());
+    }
+
+    @Test
+    void normalizesCaseAndBlanks() {
+        assertEquals(Collections.singletonList(4L), index.search("kfc", null, 0, 10));
+        assertEquals(Collections.singletonList(4L), index.search(" KFC肯 ", null, 0, 10));
+        assertTrue(index.search("  ", null, 0, 10).isEmpty());
+    }
+
+    @Test
+    void pagesAndPartitions() {
+        assertEquals(Arrays.asList(3L, 2L), index.search("茶", null, 1, 2));
+        assertEquals(Arrays.asList(2L, 1L), index.search("茶", "拱墅区", 0, 10));
+        assertTrue(index.search("茶", "滨江区", 0, 10).isEmpty());
+        assertTrue(index.search("茶", null, 0, 0).isEmpty());
+    }
+
+    @Test
+    void appliesRenamesAndMoves() {
+        // 2号店改名并换到西湖区
+        index.onShopChanged(shop(2L, "奶茶店", "拱墅区"), shop(2L, "咖啡店", "西湖区"));
+        assertEquals(Collections.singletonList(1L), index.search("奶茶", null, 0, 10));
+        assertEquals(Collections.singletonList(2L), index.search("咖啡", "西湖区", 0, 10));
+        assertTrue(index.search("咖啡", "拱墅区", 0, 10).isEmpty());
+
+        index.onShopRemoved(shop(3L, "喜茶", "西湖区"));
+        assertEquals(Arrays.asList(5L, 1L), index.search("茶", null, 0, 10));
+    }
+
+    private static Shop shop(Long id, String name, String area) {
+        return new Shop().setId(id).setName(name).setArea(area);
+    }
+}
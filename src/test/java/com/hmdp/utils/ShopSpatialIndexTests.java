@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopSpatialIndexTests {
+
+    private static final double X = 120.0;
+    private static final double Y = 30.0;
+    private static final double RADIUS = 5000;
+
+    private ShopSpatialIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopSpatialIndex();
+        // 纬度30度附近经度0.001度约96米
+        index.load(Arrays.asList(
+                shop(1L, 1L, X + 0.001, Y),
+                shop(2L, 1L, X + 0.002, Y),
+                shop(3L, 1L, X + 0.0005, Y),
+                shop(4L, 1L, X + 0.1, Y),
+                shop(5L, 2L, X, Y)));
+        index.loadFinished();
+    }
+
+    @Test
+    void returnsShopsWithinRadiusByDistance() {
+        List<ShopSpatialIndex.Neighbor> neighbors = index.radius(1L, X, Y, RADIUS, 10);
+        // 4号店约9.6公里，超出半径；5号店属于其他类型
+        assertEquals(Arrays.asList(3L, 1L, 2L), ids(neighbors));
+        for (int i = 1; i < neighbors.size(); i++) {
+            assertTrue(neighbors.get(i - 1).getDistance() <= neighbors.get(i).getDistance());
+        }
+        assertEquals(ShopSpatialIndex.distance(X, Y, X + 0.0005, Y), neighbors.get(0).getDistance(), 1e-6);
+    }
+
+    @Test
+    void limitKeepsNearest() {
+        assertEquals(Arrays.asList(3L, 1L), ids(index.radius(1L, X, Y, RADIUS, 2)));
+        assertTrue(index.radius(1L, X, Y, RADIUS, 0).isEmpty());
+        assertTrue(index.radius(3L, X, Y, RADIUS, 10).isEmpty());
+    }
+
+    @Test
+    void filterIsAppliedBeforeLimit() {
+        // 过滤掉的最近店铺不占用limit
+        assertEquals(Arrays.asList(1L, 2L), ids(index.radius(1L, X, Y, RADIUS, 2, id -> id != 3L)));
+    }
+
+    @Test
+    void appliesChangesAfterLoadAndAcrossTypes() {
+        // 1号店移到6公里外并换到类型2
+        Shop old = shop(1L, 1L, X + 0.001, Y);
+        index.onShopChanged(old, shop(1L, 2L, X + 0.06, Y));
+        assertEquals(Arrays.asList(3L, 2L), ids(index.radius(1L, X, Y, RADIUS, 10)));
+        assertEquals(Collections.singletonList(5L), ids(index.radius(2L, X, Y, RADIUS, 10)));
+
+        index.onShopRemoved(shop(3L, 1L, X + 0.0005, Y));
+        assertEquals(Collections.singletonList(2L), ids(index.radius(1L, X, Y, RADIUS, 10)));
+    }
+
+    @Test
+    void changesDuringLoadAreNotOverwrittenByLoadedRows() {
+        ShopSpatialIndex loading = new ShopSpatialIndex();
+        // 加载期间收到的变更先于加载到的旧数据到达
+        loading.onShopChanged(null, shop(1L, 1L, X + 0.06, Y));
+        loading.load(Collections.singletonList(shop(1L, 1L, X + 0.001, Y)));
+        assertFalse(loading.isReady());
+        loading.loadFinished();
+
+        assertTrue(loading.isReady());
+        assertTrue(loading.radius(1L, X, Y, RADIUS, 10).isEmpty());
+    }
+
+    private static Shop shop(Long id, Long typeId, double x, double y) {
+        return new Shop().setId(id).setTypeId(typeId).setX(x).setY(y);
+    }
+
+    private static List<Long> ids(List<ShopSpatialIndex.Neighbor> neighbors) {
+        return neighbors.stream().map(ShopSpatialIndex.Neighbor::getId).collect(Collectors.toList());
+    }
+}
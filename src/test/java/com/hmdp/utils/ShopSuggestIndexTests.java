@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ShopSuggestDTO;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.SystemConstants.SUGGEST_TOP_K;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopSuggestIndexTests {
+
+    private ShopSuggestIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new ShopSuggestIndex();
+        index.load(Arrays.asList(
+                shop(1L, "奶茶店", 100, 40),
+                shop(2L, "奶酪工坊", 10, 40),
+                shop(3L, "奶茶王", 1000, 45),
+                shop(4L, "咖啡", 0, 50)));
+        index.loadFinished();
+    }
+
+    @Test
+    void returnsTopWeightedShopsForPrefix() {
+        assertEquals(Arrays.asList(3L, 1L, 2L), ids(index.suggest("奶", 10)));
+        assertEquals(Arrays.asList(3L, 1L), ids(index.suggest("奶茶", 10)));
+        assertEquals(Collections.singletonList(3L), ids(index.suggest("奶", 1)));
+        assertEquals("奶茶王", index.suggest("奶茶王", 10).get(0).getName());
+        assertTrue(index.suggest("奶盖", 10).isEmpty());
+        assertTrue(index.suggest(" ", 10).isEmpty());
+    }
+
+    @Test
+    void reordersAfterRebuild() {
+        index.onShopChanged(shop(2L, "奶酪工坊", 10, 40), shop(2L, "奶酪工坊", 100000, 40));
+        // 字典树只读，重建之前仍是原来的顺序
+        assertEquals(Arrays.asList(3L, 1L, 2L), ids(index.suggest("奶", 10)));
+
+        index.rebuildIfDirty();
+        assertEquals(Arrays.asList(2L, 3L, 1L), ids(index.suggest("奶", 10)));
+
+        index.onShopRemoved(shop(3L, "奶茶王", 1000, 45));
+        index.rebuildIfDirty();
+        assertEquals(Arrays.asList(2L, 1L), ids(index.suggest("奶", 10)));
+        assertEquals(Collections.singletonList(1L), ids(index.suggest("奶茶", 10)));
+    }
+
+    @Test
+    void keepsOnlyTopK() {
+        ShopSuggestIndex large = new ShopSuggestIndex();
+        List<Shop> shops = new ArrayList<>();
+        for (long id = 1; id <= SUGGEST_TOP_K + 5; id++) {
+            shops.add(shop(id, "店" + id, (int) id * 10, 10));
+        }
+        large.load(shops);
+        large.loadFinished();
+
+        List<Long> ids = ids(large.suggest("店", 100));
+        assertEquals(SUGGEST_TOP_K, ids.size());
+        // 销量越高权重越高，取销量最高的SUGGEST_TOP_K个
+        assertEquals(SUGGEST_TOP_K + 5L, ids.get(0));
+        assertEquals(6L, ids.get(ids.size() - 1));
+    }
+
+    private static Shop shop(Long id, String name, int sold, int score) {
+        return new Shop().setId(id).setName(name).setSold(sold).setScore(score);
+    }
+
+    private static List<Long> ids(List<ShopSuggestDTO> suggestions) {
+        return suggestions.stream().map(ShopSuggestDTO::getId).collect(Collectors.toList());
+    }
+}